@@ -0,0 +1,104 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.security.SecureRandom
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+
+/**
+ * Timings for the modexp backends
+ *
+ * Each invocation computes one batch of random modexps, so the reported time divided by batch is the
+ * cost per modexp. A fixed modulus goes through compute(Array[ModPow2], mod), a varying one through
+ * compute(Array[ModPow]).
+ *
+ * The full parameter space takes many hours (a million 3072 bit modexps on one core alone takes hours),
+ * restrict it with -p, for example
+ *
+ *   sbt "bench/jmh:run -p backend=parallel,gmp -p bits=2048 -p batch=100000 ModPowBenchmark"
+ *
+ * The akka backend starts the ClusterSystem from application.conf and uses whatever workers join it,
+ * the seed node must be reachable (point akka.cluster.seed-nodes to the local node for single machine runs).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+class ModPowBenchmark {
+
+  @Param(Array("sequential", "parallel", "gmp", "akka"))
+  var backend: String = _
+
+  @Param(Array("1024", "2048", "3072"))
+  var bits: Int = _
+
+  @Param(Array("fixed", "varying"))
+  var modulus: String = _
+
+  @Param(Array("10", "1000", "100000", "1000000"))
+  var batch: Int = _
+
+  var service: ModPowService = _
+  var mod: BigInteger = _
+  var work: Array[ModPow] = _
+  var workFixed: Array[ModPow2] = _
+
+  @Setup(Level.Trial)
+  def setup() = {
+    val random = new SecureRandom()
+    // odd moduli of exactly the requested length, like safe primes (modPow needs an odd modulus with gmp)
+    def randomMod() = new BigInteger(bits, random).setBit(bits - 1).setBit(0)
+    def below(m: BigInteger) = new BigInteger(bits, random).mod(m)
+
+    service = backend match {
+      case "sequential" => SequentialModPowService
+      case "parallel" => ParallelModPowService
+      case "gmp" => GmpParallelModPowService
+      case "akka" => AkkaModPowService
+      case _ => throw new IllegalArgumentException(s"unknown backend $backend")
+    }
+
+    mod = randomMod()
+    if(modulus == "fixed") {
+      workFixed = Array.fill(batch)(ModPow2(below(mod), below(mod)))
+    }
+    else {
+      work = Array.fill(batch) {
+        val m = randomMod()
+        ModPow(below(m), below(m), m)
+      }
+    }
+  }
+
+  @Benchmark
+  def compute(): Array[BigInteger] = {
+    if(modulus == "fixed") service.compute(workFixed, mod)
+    else service.compute(work)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown() = {
+    work = null
+    workFixed = null
+    if(backend == "akka") AkkaModPowService.shutdown
+  }
+}
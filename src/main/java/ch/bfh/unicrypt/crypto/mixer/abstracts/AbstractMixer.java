@@ -1,4 +1,4 @@
-// drb MPBridge.ex
+// drb MPBridge.ex, precomputed re-encryption factors
 /*
  * UniCrypt
  *
@@ -42,9 +42,13 @@
  */
 package ch.bfh.unicrypt.crypto.mixer.abstracts;
 
+import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer;
 import ch.bfh.unicrypt.crypto.mixer.interfaces.Mixer;
+import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme;
 import ch.bfh.unicrypt.helper.random.RandomByteSequence;
 import ch.bfh.unicrypt.helper.random.hybrid.HybridRandomByteSequence;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair;
 import ch.bfh.unicrypt.math.algebra.general.classes.PermutationElement;
 import ch.bfh.unicrypt.math.algebra.general.classes.PermutationGroup;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet;
@@ -53,8 +57,14 @@ import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Set;
 import ch.bfh.unicrypt.math.function.classes.PermutationFunction;
 import ch.bfh.unicrypt.math.function.interfaces.Function;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 import mpservice.MPBridge;
+import mpservice.ModPowFuture;
 
 /**
  *
@@ -127,16 +137,149 @@ public abstract class AbstractMixer<C extends Set, R extends Set>
 		}
 		final Element[] elementsPrime = new Element[this.getSize()];
 
-		MPBridge.ex(() -> {
-			for (int i = 0; i < this.getSize(); i++) {
-				elementsPrime[i] = this.getShuffleFunction().apply(elements.getAt(i), randomizations.getAt(i));
+		// the randomizations are secret, they link input and output ciphertexts
+		MPBridge.secret(() -> {
+			if (this.isGStarModElGamalMixer()) {
+				this.reEncrypt(elements, this.computeFactors(randomizations), elementsPrime);
+			} else {
+				MPBridge.ex(() -> {
+					for (int i = 0; i < this.getSize(); i++) {
+						elementsPrime[i] = this.getShuffleFunction().apply(elements.getAt(i), randomizations.getAt(i));
+					}
+					return elementsPrime;
+				}, "2");
 			}
 			return elementsPrime;
-		}, "2");
+		});
 
 		return this.getPermutationFunction().apply(Tuple.getInstance(elementsPrime), permutation);
 	}
 
+	// drb
+	/**
+	 * Offline phase of the shuffle: draws the randomizations and, for ElGamal over GStarMod, computes the
+	 * re-encryption factors (g^r, y^r). Only the public key is needed, so this can run before the
+	 * ciphertexts are known, and shuffle(elements, permutation, factors) is then just multiplications.
+	 */
+	public final ReEncryptionFactors precomputeReEncryptions() {
+		Tuple randomizations = this.generateRandomizations();
+		if (!this.isGStarModElGamalMixer()) {
+			return new ReEncryptionFactors(this, randomizations, null);
+		}
+		long now = System.currentTimeMillis();
+		BigInteger[][] factors = MPBridge.secret(() -> this.computeFactors(randomizations));
+		System.out.println("AbstractMixer: precomputed " + this.getSize() + " re-encryption factors [" + (System.currentTimeMillis() - now) + " ms]");
+
+		return new ReEncryptionFactors(this, randomizations, factors);
+	}
+
+	// drb
+	public final Tuple shuffle(final Tuple elements, final PermutationElement permutation, final ReEncryptionFactors factors) {
+		if (factors == null) {
+			return this.shuffle(elements, permutation, (Tuple) null);
+		}
+		if (factors.factors == null) {
+			factors.consume();
+			return this.shuffle(elements, permutation, factors.getRandomizations());
+		}
+		if (!this.getShufflesSpace().contains(elements) || factors.mixer != this
+			   || permutation == null || permutation.getValue().getSize() != this.getSize()) {
+			throw new IllegalArgumentException();
+		}
+		factors.consume();
+		final Element[] elementsPrime = new Element[this.getSize()];
+		this.reEncrypt(elements, factors.factors, elementsPrime);
+
+		return this.getPermutationFunction().apply(Tuple.getInstance(elementsPrime), permutation);
+	}
+
+	/**
+	 * Randomizations and their re-encryption factors for one shuffle. They are secret and part of the shuffle
+	 * proof's witness, so a second shuffle with them throws IllegalStateException.
+	 */
+	public static final class ReEncryptionFactors {
+
+		// the factors are only valid for the public key and size of this mixer
+		private final AbstractMixer mixer;
+		private final Tuple randomizations;
+		// g^r and y^r per randomization, null if the mixer does not support precomputation
+		private final BigInteger[][] factors;
+		// set by the shuffle that uses them
+		private final AtomicBoolean consumed = new AtomicBoolean(false);
+
+		private ReEncryptionFactors(AbstractMixer mixer, Tuple randomizations, BigInteger[][] factors) {
+			this.mixer = mixer;
+			this.randomizations = randomizations;
+			this.factors = factors;
+		}
+
+		private void consume() {
+			if (!this.consumed.compareAndSet(false, true)) {
+				throw new IllegalStateException("re-encryption factors already used");
+			}
+		}
+
+		public Tuple getRandomizations() {
+			return this.randomizations;
+		}
+	}
+
+	private boolean isGStarModElGamalMixer() {
+		if (!(this instanceof ReEncryptionMixer)) {
+			return false;
+		}
+		ReEncryptionMixer mixer = (ReEncryptionMixer) this;
+		return mixer.getReEncryptionScheme() instanceof ElGamalEncryptionScheme
+			   && ((ElGamalEncryptionScheme) mixer.getReEncryptionScheme()).getCyclicGroup() instanceof GStarMod;
+	}
+
+	private GStarMod getGroup() {
+		return (GStarMod) ((ElGamalEncryptionScheme) ((ReEncryptionMixer) this).getReEncryptionScheme()).getCyclicGroup();
+	}
+
+	// ElGamal re-encryption factors (g^r, y^r), the 2N modexps are requested as futures and computed as one batch
+	private BigInteger[][] computeFactors(final Tuple randomizations) {
+		final ReEncryptionMixer mixer = (ReEncryptionMixer) this;
+		final ElGamalEncryptionScheme elGamal = (ElGamalEncryptionScheme) mixer.getReEncryptionScheme();
+		final BigInteger modulus = this.getGroup().getModulus();
+		final BigInteger generator = ((GStarModElement) elGamal.getGenerator()).getValue();
+		final BigInteger publicKey = ((GStarModElement) mixer.getPublicKey()).getValue();
+
+		return MPBridge.exDeferred(() -> {
+			final ModPowFuture[] gr = new ModPowFuture[this.getSize()];
+			final ModPowFuture[] yr = new ModPowFuture[this.getSize()];
+			for (int i = 0; i < this.getSize(); i++) {
+				BigInteger r = ((ZModElement) randomizations.getAt(i)).getValue();
+				gr[i] = MPBridge.deferModPow(generator, r, modulus);
+				yr[i] = MPBridge.deferModPow(publicKey, r, modulus);
+			}
+			return () -> {
+				final BigInteger[][] ret = new BigInteger[2][this.getSize()];
+				for (int i = 0; i < this.getSize(); i++) {
+					ret[0][i] = gr[i].get();
+					ret[1][i] = yr[i].get();
+				}
+				return ret;
+			};
+		});
+	}
+
+	// ElGamal re-encryption (a, b) -> (a * g^r, b * y^r) given the factors
+	private void reEncrypt(final Tuple elements, final BigInteger[][] factors, final Element[] elementsPrime) {
+		final GStarMod group = this.getGroup();
+		final ProductSet shuffleSpace = (ProductSet) this.getShuffleSpace();
+		final BigInteger modulus = group.getModulus();
+
+		IntStream.range(0, this.getSize()).parallel().forEach(i -> {
+			Pair ciphertext = (Pair) elements.getAt(i);
+			BigInteger a = ((GStarModElement) ciphertext.getFirst()).getValue();
+			BigInteger b = ((GStarModElement) ciphertext.getSecond()).getValue();
+			elementsPrime[i] = shuffleSpace.getElement(
+				   group.getElement(a.multiply(factors[0][i]).mod(modulus), true),
+				   group.getElement(b.multiply(factors[1][i]).mod(modulus), true));
+		});
+	}
+
 	@Override
 	public final Tuple generateRandomizations() {
 		return this.generateRandomizations(HybridRandomByteSequence.getInstance());
@@ -50,6 +50,7 @@ import ch.bfh.unicrypt.crypto.proofsystem.classes.PermutationCommitmentProofSyst
 import ch.bfh.unicrypt.helper.math.MathUtil;
 import ch.bfh.unicrypt.helper.random.RandomOracle;
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZMod;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductGroup;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet;
 import ch.bfh.unicrypt.math.algebra.general.classes.Triple;
@@ -57,8 +58,12 @@ import ch.bfh.unicrypt.math.algebra.general.classes.Tuple;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Group;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import java.math.BigInteger;
 
 import mpservice.MPBridge;
+import mpservice.ModPow2;
 
 /**
  * This class is an abstract base implementation for shuffle proof systems according to Wikström (@see Wik09, TW10). It
@@ -221,10 +226,14 @@ public abstract class AbstractShuffleProofSystem
 	// Helper to compute the inner product
 	// - Additive:       Sum(t1_i*t2_i)
 	// - Multiplicative: Prod(t1_i^(t2_i))
-	protected static Element computeInnerProduct(Tuple t1, Tuple t2) {
+	public static Element computeInnerProduct(Tuple t1, Tuple t2) {
 		if (!t1.getSet().isGroup() || t1.getArity() < 1) {
 			throw new IllegalArgumentException();
 		}
+		Element product = computeMultiExp(t1, t2);
+		if (product != null) {
+			return product;
+		}
 		final Element innerProduct = ((Group) t1.getSet().getAt(0)).getIdentityElement();
 		
 		Element ret = MPBridge.ex(() -> {
@@ -239,6 +248,54 @@ public abstract class AbstractShuffleProofSystem
 		return ret;
 	}
 
+	// Multiplicative inner product over GStarMod elements (or tuples of them, componentwise) with
+	// ZMod exponents, computed as simultaneous multi-exponentiations. Returns null if not applicable.
+	private static Element computeMultiExp(Tuple t1, Tuple t2) {
+		final int n = t1.getArity();
+		final Element first = t1.getAt(0);
+		final int width = (first instanceof Tuple) ? ((Tuple) first).getArity() : 0;
+
+		final BigInteger[] exponents = new BigInteger[n];
+		for (int i = 0; i < n; i++) {
+			if (!(t2.getAt(i) instanceof ZModElement)) {
+				return null;
+			}
+			exponents[i] = ((ZModElement) t2.getAt(i)).getValue();
+		}
+
+		if (width == 0) {
+			return multiExp(t1, exponents, -1);
+		}
+		final Element[] components = new Element[width];
+		for (int j = 0; j < width; j++) {
+			components[j] = multiExp(t1, exponents, j);
+			if (components[j] == null) {
+				return null;
+			}
+		}
+		return ((ProductSet) first.getSet()).getElement(components);
+	}
+
+	// Prod(t1_i^exponents_i), taking component j of each t1_i if j >= 0
+	private static Element multiExp(Tuple t1, BigInteger[] exponents, int j) {
+		final ModPow2[] work = new ModPow2[exponents.length];
+		GStarMod group = null;
+		for (int i = 0; i < exponents.length; i++) {
+			Element next = (j < 0) ? t1.getAt(i) : ((Tuple) t1.getAt(i)).getAt(j);
+			if (!(next instanceof GStarModElement)) {
+				return null;
+			}
+			GStarModElement element = (GStarModElement) next;
+			if (group == null) {
+				group = element.getSet();
+			} else if (!group.equals(element.getSet())) {
+				return null;
+			}
+			work[i] = new ModPow2(element.getValue(), exponents[i]);
+		}
+		return group.getElement(MPBridge.multiExp(work, group.getModulus()), true);
+	}
+
 	//===================================================================================
 	// Helpers to create spaces
 	//
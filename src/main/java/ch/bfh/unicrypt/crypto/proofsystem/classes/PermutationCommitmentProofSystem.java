@@ -1,4 +1,4 @@
-// drb logging and MPBridge.ex and generators
+// drb logging and MPBridge.ex and generators, closed form commitment chain
 /*
  * UniCrypt
  *
@@ -43,6 +43,7 @@
 package ch.bfh.unicrypt.crypto.proofsystem.classes;
 
 import ch.bfh.unicrypt.crypto.proofsystem.abstracts.AbstractProofSystem;
+import ch.bfh.unicrypt.crypto.proofsystem.abstracts.AbstractShuffleProofSystem;
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.RandomOracleChallengeGenerator;
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.RandomOracleSigmaChallengeGenerator;
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.interfaces.ChallengeGenerator;
@@ -73,6 +74,7 @@ import ch.bfh.unicrypt.math.function.classes.ProductFunction;
 
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
 import mpservice.MPBridge;
+import com.typesafe.config.ConfigFactory;
 
 //
 // @see [TW10] Protocol 1: Permutation Matrix
@@ -81,6 +83,8 @@ public class PermutationCommitmentProofSystem
 	   extends AbstractProofSystem<ProductGroup, Pair, ProductGroup, Tuple, ProductSet, Tuple> {
 
 	final private static int DEFAULT_KR = 20;
+	// drb, compute the commitment chain c_i in closed form (see abstractGenerate)
+	final private static boolean parallelChain = ConfigFactory.load().getBoolean("permutation-proof-parallel-chain");
 
 	final private SigmaChallengeGenerator sigmaChallengeGenerator;
 	final private ChallengeGenerator eValuesGenerator;
@@ -187,6 +191,63 @@ public class PermutationCommitmentProofSystem
 		return proof.getAt(4);
 	}
 
+	// drb
+	/**
+	 * Fills cs with the commitments c_i = g^(r_i) * c_(i-1)^(e'_i), c_(-1) = h, and ds with d_i = r_i + e'_i * d_(i-1),
+	 * either in closed form or with the sequential loop
+	 */
+	static void commitmentChain(CyclicGroup cyclicGroup, Element g, Element h, Tuple rV, Tuple ePrimeV, Element[] cs,
+		   Element[] ds, boolean closedForm) {
+		final int size = cs.length;
+		ds[0] = rV.getAt(0);
+		
+		if (closedForm) {
+			// c_i = g^(r_i) * c_(i-1)^(e'_i) with c_(-1) = h unrolls to c_i = h^(e'_0 * ... * e'_i) * g^(d_i), where
+			// d_i = r_i + e'_i * d_(i-1). Both exponents are prefix products/sums in Z_q, so the 2n modexps are
+			// independent and go to the extractor as one batch
+			final ZMod zMod = cyclicGroup.getZModOrder();
+			final ZModElement[] ps = new ZModElement[size];
+			for (int i = 0; i < size; i++) {
+				ZModElement e = zMod.getElement(ePrimeV.getAt(i).convertToBigInteger().mod(zMod.getOrder()));
+				ps[i] = i == 0 ? e : ps[i - 1].multiply(e);
+				if (i > 0) {
+					ds[i] = rV.getAt(i).apply(ds[i - 1].selfApply(ePrimeV.getAt(i)));
+				}
+			}
+long now = System.currentTimeMillis();
+			MPBridge.ex(() -> {
+				for (int i = 0; i < size; i++) {
+					cs[i] = h.selfApply(ps[i]).apply(g.selfApply(ds[i]));  //   [2n]
+				}
+				return cs;
+			}, "2");
+System.out.println("Closed form chain: [" + (System.currentTimeMillis() - now) + " ms]");
+		}
+		else {
+			final Element[] temp = new Element[size];
+			MPBridge.ex(() -> {
+				for (int i = 0; i < size; i++) {	
+					temp[i] = g.selfApply(rV.getAt(i));  //   [2n]
+					if (i > 0) {
+						ds[i] = rV.getAt(i).apply(ds[i - 1].selfApply(ePrimeV.getAt(i)));
+					}
+				}
+				return 0;
+			}, "2");
+
+System.out.println("Cannot parallelize..");
+long now = System.currentTimeMillis();
+			// CANT BE PARALLELIZED
+			MPBridge.a();
+			for (int i = 0; i < size; i++) {
+				Element c_i_1 = i == 0 ? h : cs[i - 1];
+				cs[i] = temp[i].apply(c_i_1.selfApply(ePrimeV.getAt(i)));  //   [2n]
+			}
+			MPBridge.b();
+System.out.println("Bad loop: [" + ((System.currentTimeMillis() - now) / 1000.0) + " ms]");
+		}
+	}
+
 	//===================================================================================
 	// Generate and Validate
 	//
@@ -213,31 +274,8 @@ public class PermutationCommitmentProofSystem
 
 		final Element[] cs = new Element[this.size];
 		final Element[] ds = new Element[this.size];
-		ds[0] = rV.getAt(0);
-		
-		final Element[] temp = new Element[this.size];
-		final Tuple ePrimeVFinal = ePrimeV;
-		MPBridge.ex(() -> {
-			for (int i = 0; i < this.size; i++) {	
-				temp[i] = g.selfApply(rV.getAt(i));  //   [2n]
-				if (i > 0) {
-					ds[i] = rV.getAt(i).apply(ds[i - 1].selfApply(ePrimeVFinal.getAt(i)));
-				}
-			}
-			return 0;
-		}, "2");
+		commitmentChain(this.cyclicGroup, g, h, rV, ePrimeV, cs, ds, parallelChain);
 
-System.out.println("Cannot parallelize..");
-long now = System.currentTimeMillis();
-		// CANT BE PARALLELIZED
-		MPBridge.a();
-		for (int i = 0; i < this.size; i++) {
-			Element c_i_1 = i == 0 ? h : cs[i - 1];
-			cs[i] = temp[i].apply(c_i_1.selfApply(ePrimeV.getAt(i)));  //   [2n]
-		}
-		MPBridge.b();
-System.out.println("Bad loop: [" + ((System.currentTimeMillis() - now) / 1000.0) + " ms]");
-				
 		final Tuple cV = Tuple.getInstance(cs);
 		final Element d = ds[ds.length - 1];
 
@@ -342,20 +380,7 @@ System.out.println("perm ver pv.selfApply " + (MPBridge.total - before));
 	// - Additive:       Sum(t1_i*t2_i)
 	// - Multiplicative: Prod(t1_i^(t2_i))
 	private static Element computeInnerProduct(Tuple t1, Tuple t2) {
-		if (!t1.getSet().isGroup() || t1.getArity() < 1) {
-			throw new IllegalArgumentException();
-		}
-		Element innerProduct = ((Group) t1.getSet().getAt(0)).getIdentityElement();
-		
-		Element ret = MPBridge.ex(() -> {
-			Element ip = innerProduct;
-			for (int i = 0; i < t1.getArity(); i++) {
-				ip = ip.apply(t1.getAt(i).selfApply(t2.getAt(i)));
-			}
-			return ip;
-		}, "2");
-
-		return ret;
+		return AbstractShuffleProofSystem.computeInnerProduct(t1, t2);
 	}
 
 	//===================================================================================
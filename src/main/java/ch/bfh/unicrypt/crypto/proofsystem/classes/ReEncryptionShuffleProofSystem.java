@@ -1,4 +1,4 @@
-// drb logging and generators
+// drb logging and generators, offline commitment precomputation
 /*
  * UniCrypt
  *
@@ -51,6 +51,7 @@ import ch.bfh.unicrypt.crypto.schemes.encryption.interfaces.ReEncryptionScheme;
 import ch.bfh.unicrypt.helper.math.MathUtil;
 import ch.bfh.unicrypt.helper.random.RandomByteSequence;
 import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteSequence;
+import ch.bfh.unicrypt.helper.random.hybrid.HybridRandomByteSequence;
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZMod;
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
 import ch.bfh.unicrypt.math.algebra.general.classes.PermutationElement;
@@ -67,6 +68,7 @@ import ch.bfh.unicrypt.math.function.abstracts.AbstractFunction;
 import ch.bfh.unicrypt.math.function.classes.ConvertFunction;
 import ch.bfh.unicrypt.math.function.classes.PermutationFunction;
 import ch.bfh.unicrypt.math.function.classes.ProductFunction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
 import mpservice.MPBridge;
@@ -145,6 +147,67 @@ public class ReEncryptionShuffleProofSystem
 	//
 	@Override
 	protected Tuple abstractGenerate(Triple privateInput, Tuple publicInput, RandomByteSequence randomByteSequence) {
+		return this.generateProof(privateInput, publicInput, this.precomputeCommitment(randomByteSequence));
+	}
+
+	// drb
+	/**
+	 * Offline part of the proof commitment. The random element (r', w', e'), the pedersen commitment
+	 * Com(e', w') and Enc(1, -r') do not depend on the ciphertexts, only Prod(u'_i^e'_i) does, so N + 3
+	 * of the 3N + 3 modexps of the commitment can be computed before the votes are known.
+	 */
+	public final CommitmentPrecomputation precomputeCommitment() {
+		return this.precomputeCommitment(HybridRandomByteSequence.getInstance());
+	}
+
+	public final CommitmentPrecomputation precomputeCommitment(RandomByteSequence randomByteSequence) {
+		if (randomByteSequence == null) {
+			throw new IllegalArgumentException();
+		}
+		// (r', w', e') is the proof randomness, the response would reveal the witness if it leaked
+		return MPBridge.secret(() -> this.computeCommitmentPrecomputation(randomByteSequence));
+	}
+
+	private CommitmentPrecomputation computeCommitmentPrecomputation(RandomByteSequence randomByteSequence) {
+		Tuple randomElement = this.getResponseSpace().extractPrefix(2).getRandomElement(randomByteSequence);
+		Tuple randEV = ProductGroup.getInstance(ZMod.getInstance(MathUtil.powerOfTwo(this.getKe() + this.getKc() + this.getKr())),
+												this.getSize()).getRandomElement(randomByteSequence);
+
+		// 'Normally' ke+kc+kr < cyclicGroup.getOrder, but in case it isn't!
+		Element[] randEVs = new Element[this.getSize()];
+		for (int i = 0; i < randEVs.length; i++) {
+			randEVs[i] = this.getCyclicGroup().getZModOrder().getElement(randEV.getAt(i).convertToBigInteger().mod(this.getCyclicGroup().getOrder()));
+		}
+		randEV = Tuple.getInstance(randEVs);
+		randomElement = randomElement.append(Tuple.getInstance(randEV));
+
+		final Tuple independentGenerators = this.getIndependentGenerators();
+		final GeneralizedPedersenCommitmentScheme gpcs = GeneralizedPedersenCommitmentScheme.getInstance(independentGenerators.getAt(0),
+																		independentGenerators.extract(1, this.getSize()));
+		// - Com(e', w)                              [n+1]
+		final Element pedersenCommitment = gpcs.commit(randEV, randomElement.getAt(1));
+		// - Enc(1, -r)                                [2]
+		final Element encryption = this.encryptionScheme.encrypt(this.encryptionPK,
+			   this.encryptionScheme.getMessageSpace().getIdentityElement(), randomElement.getAt(0).invert());
+
+		return new CommitmentPrecomputation(this, randomElement, pedersenCommitment, encryption);
+	}
+
+	// drb
+	/**
+	 * Generates the proof using a commitment precomputation. A precomputation answers a single challenge, a
+	 * second use throws IllegalStateException since two responses with the same (r', w', e') reveal the witness.
+	 */
+	public final Tuple generate(Element privateInput, Element publicInput, CommitmentPrecomputation precomputation) {
+		if (!this.getPrivateInputSpace().contains(privateInput) || !this.getPublicInputSpace().contains(publicInput)
+			   || precomputation == null || precomputation.proofSystem != this) {
+			throw new IllegalArgumentException();
+		}
+		return this.generateProof((Triple) privateInput, (Tuple) publicInput, precomputation);
+	}
+
+	private Tuple generateProof(Triple privateInput, Tuple publicInput, CommitmentPrecomputation precomputation) {
+		precomputation.consume();
 
 		// Unfold private and public input
 		final PermutationElement pi = (PermutationElement) privateInput.getFirst();
@@ -163,27 +226,14 @@ public class ReEncryptionShuffleProofSystem
 			   ConvertFunction.getInstance(ePrimeV.getFirst().getSet(), this.getCyclicGroup().getZModOrder()),
 			   ePrimeV.getLength()).apply(ePrimeV);
 
-		// Create sigma proof
-		PreimageProofFunction f
-			   = new PreimageProofFunction(this.getCyclicGroup(), this.getSize(), this.getResponseSpace(),
-										   this.getCommitmentSpace(), this.getIndependentGenerators(), uPrimeV, this.encryptionScheme,
-										   this.encryptionPK);
-
-		Tuple randomElement = this.getResponseSpace().extractPrefix(2).getRandomElement(randomByteSequence);
-		Tuple randEV = ProductGroup.getInstance(ZMod.getInstance(MathUtil.powerOfTwo(this.getKe() + this.getKc() + this.getKr())),
-												this.getSize()).getRandomElement(randomByteSequence);
-
-		// 'Normally' ke+kc+kr < cyclicGroup.getOrder, but in case it isn't!
-		Element[] randEVs = new Element[this.getSize()];
-		for (int i = 0; i < randEVs.length; i++) {
-			randEVs[i] = this.getCyclicGroup().getZModOrder().getElement(randEV.getAt(i).convertToBigInteger().mod(this.getCyclicGroup().getOrder()));
-		}
-		randEV = Tuple.getInstance(randEVs);
-		randomElement = randomElement.append(Tuple.getInstance(randEV));
+		// Create sigma proof, the commitment is (Com(e', w'), Prod(u'_i^(e'_i)) * Enc(1, -r')) as in PreimageProofFunction
+		final Tuple randomElement = precomputation.randomElement;
 
 long before = MPBridge.total;
-		final Element commitment = f.apply(randomElement);                        // [3N+3]
-System.out.println("renc gen f.apply " + (MPBridge.total - before));
+		// - Prod(u'_i^(e'_i))                                                       [2N]
+		final Element product = MPBridge.secret(() -> computeInnerProduct(uPrimeV, (Tuple) randomElement.getAt(2)));
+		final Element commitment = Tuple.getInstance(precomputation.pedersenCommitment, product.apply(precomputation.encryption));
+System.out.println("renc gen online " + (MPBridge.total - before));
 		
 
 		final Element challenge = this.getSigmaChallengeGenerator().generate(publicInput, commitment);
@@ -232,6 +282,34 @@ System.out.println("renc ver f.apply " + (MPBridge.total - before));
 		return left.isEquivalent(right);                                          // [6N+6]
 	}
 
+	//===================================================================================
+	// Nested class CommitmentPrecomputation
+	//
+	public static final class CommitmentPrecomputation {
+
+		private final ReEncryptionShuffleProofSystem proofSystem;
+		// (r', w', e'), secret
+		private final Tuple randomElement;
+		private final Element pedersenCommitment;
+		private final Element encryption;
+		// set by the proof that uses it
+		private final AtomicBoolean consumed = new AtomicBoolean(false);
+
+		private CommitmentPrecomputation(ReEncryptionShuffleProofSystem proofSystem, Tuple randomElement,
+			   Element pedersenCommitment, Element encryption) {
+			this.proofSystem = proofSystem;
+			this.randomElement = randomElement;
+			this.pedersenCommitment = pedersenCommitment;
+			this.encryption = encryption;
+		}
+
+		private void consume() {
+			if (!this.consumed.compareAndSet(false, true)) {
+				throw new IllegalStateException("commitment precomputation already used");
+			}
+		}
+	}
+
 	//===================================================================================
 	// Nested class PreimageProofFunction
 	//
@@ -56,6 +56,7 @@ import ch.bfh.unicrypt.math.function.classes.GeneratorFunction;
 import ch.bfh.unicrypt.math.function.classes.ProductFunction;
 import ch.bfh.unicrypt.math.function.interfaces.Function;
 
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
 import mpservice.MPBridge;
 
 public class GeneralizedPedersenCommitmentScheme
@@ -73,6 +74,7 @@ public class GeneralizedPedersenCommitmentScheme
 		this.size = size;
 		this.randomizationGenerator = randomizationGenerator;
 		this.messageGenerators = messageGenerators;
+		GStarMod.registerFixedBase(randomizationGenerator);
 	}
 
 	public final CyclicGroup getCyclicGroup() {
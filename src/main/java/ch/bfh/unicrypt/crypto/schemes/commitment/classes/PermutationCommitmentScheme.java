@@ -58,6 +58,7 @@ import ch.bfh.unicrypt.math.function.abstracts.AbstractFunction;
 import ch.bfh.unicrypt.math.function.interfaces.Function;
 
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
 import mpservice.MPBridge;
 
 //
@@ -81,6 +82,7 @@ public class PermutationCommitmentScheme
 		this.size = size;
 		this.randomizationGenerator = randomizationGenerator;
 		this.messageGenerators = messageGenerators;
+		GStarMod.registerFixedBase(randomizationGenerator);
 	}
 
 	@Override
@@ -112,7 +114,9 @@ public class PermutationCommitmentScheme
 		if (cyclicGroup == null || size < 1 || randomByteSequence == null) {
 			throw new IllegalArgumentException();
 		}
-		Element randomizationGenerator = cyclicGroup.getIndependentGenerators(randomByteSequence).get(0);
+		// drb, with hash derived generators the randomization generator is generator 0 of the same derivation
+		Element randomizationGenerator = AbstractCyclicGroup.isHashDerivation() ?
+			((AbstractCyclicGroup) cyclicGroup).getIndependentGeneratorP(0) : cyclicGroup.getIndependentGenerators(randomByteSequence).get(0);
 		
 		// the generators are calculated lazily only when tuple.get instance is called
 		// at ch.bfh.unicrypt.helper.array.classes.DenseArray.getInstance(DenseArray.java:122)
@@ -1,4 +1,4 @@
-// drb support for use-generators-parallel
+// drb support for use-generators-parallel, generators-derivation, generators-store-dir
 /*
  * UniCrypt
  *
@@ -53,9 +53,23 @@ import ch.bfh.unicrypt.helper.sequence.functions.Predicate;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
 import ch.bfh.unicrypt.helper.array.classes.DenseArray;
+import ch.bfh.unicrypt.helper.array.classes.ByteArray;
+import ch.bfh.unicrypt.helper.random.deterministic.CTR_DRBG;
+import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteArraySequence;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
 
+import mpservice.GeneratorStore;
 import mpservice.MPBridge;
 import com.typesafe.config.ConfigFactory;
+import java.lang.ref.SoftReference;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * This abstract class provides a base implementation for the interface {@link CyclicGroup}.
@@ -76,6 +90,12 @@ public abstract class AbstractCyclicGroup<E extends Element<V>, V>
 
 	private E defaultGenerator;
 	private boolean generatorsParallel = ConfigFactory.load().getBoolean("use-generators-parallel");
+	// drb
+	private static final boolean hashGenerators = "hash".equals(ConfigFactory.load().getString("generators-derivation"));
+	private static final String GENERATORS_DERIVATION = "agora-mixnet independent generators";
+	private static final byte[] GENERATORS_DOMAIN = GENERATORS_DERIVATION.getBytes(StandardCharsets.UTF_8);
+	// generators 0..n-1 derived so far, shared by the commitment scheme and the proof systems
+	private transient SoftReference<Element<V>[]> derivedGenerators;
 
 	protected AbstractCyclicGroup(Class<?> valueClass) {
 		super(valueClass);
@@ -107,7 +127,10 @@ public abstract class AbstractCyclicGroup<E extends Element<V>, V>
 		System.out.println("AbstractCyclicGroup: getIndependentGeneratorsP");
 
 		DenseArray<Element<V>> ret = null;
-		if(generatorsParallel) {
+		if(hashGenerators) {
+			ret = DenseArray.getInstance(Arrays.copyOfRange(this.getDerivedGenerators(skip + size), skip, skip + size));
+		}
+		else if(generatorsParallel) {
 			java.util.List<E> list = mpservice.MPBridgeS.getIndependentGenerators(this, skip, size);
 			Element<V>[] array = list.toArray(new Element[0]);
 			ret = DenseArray.getInstance(array);
@@ -119,6 +142,98 @@ public abstract class AbstractCyclicGroup<E extends Element<V>, V>
 		return ret;
 	}
 
+	// drb, whether getIndependentGeneratorsP returns hash derived generators (generators-derivation=hash)
+	public static boolean isHashDerivation() {
+		return hashGenerators;
+	}
+
+	// drb, generator i of getIndependentGeneratorsP
+	public final Element<V> getIndependentGeneratorP(int index) {
+		return this.getIndependentGeneratorsP(index, 1).getAt(0);
+	}
+
+	/**
+	 * Generator i is the first generator drawn from a CTR_DRBG seeded with SHA-256(domain || i), so each one
+	 * depends only on its index: they are computed in parallel and any verifier gets the same ones whatever
+	 * its number of cores. These are not the generators of getIndependentGenerators (a single DRBG stream).
+	 *
+	 * Generators are also kept in the GeneratorStore, so only those not derived by a previous run are computed.
+	 */
+	private synchronized Element<V>[] getDerivedGenerators(int count) {
+		Element<V>[] cached = this.derivedGenerators == null ? null : this.derivedGenerators.get();
+		int from = cached == null ? 0 : cached.length;
+		if(from >= count) {
+			return cached;
+		}
+		final Element<V>[] ret = cached == null ? new Element[count] : Arrays.copyOf(cached, count);
+		int loaded = this.loadGenerators(ret, from);
+		if(loaded < count) {
+			long now = System.currentTimeMillis();
+			IntStream.range(loaded, count).parallel().forEach(i -> ret[i] = this.deriveGenerator(i));
+			System.out.println("AbstractCyclicGroup: derived " + (count - loaded) + " generators [" + (System.currentTimeMillis() - now) + " ms]");
+			this.storeGenerators(ret);
+		}
+		this.derivedGenerators = new SoftReference<Element<V>[]>(ret);
+
+		return ret;
+	}
+
+	// fills ret with stored generators from index from, returns the number of generators now in ret
+	private int loadGenerators(Element<V>[] ret, int from) {
+		if(!GeneratorStore.isEnabled() || !(this instanceof GStarMod)) {
+			return from;
+		}
+		GStarMod group = (GStarMod) this;
+		BigInteger[] values = GeneratorStore.load(group.getModulus(), GENERATORS_DERIVATION, ret.length);
+		if(values.length <= from) {
+			return from;
+		}
+		BigInteger[] loaded = Arrays.copyOfRange(values, from, values.length);
+		if(!group.containsAll(loaded)) {
+			System.err.println("AbstractCyclicGroup: stored generators are not group elements, deriving them");
+			GeneratorStore.discard(group.getModulus(), GENERATORS_DERIVATION);
+			return from;
+		}
+		IntStream.range(from, values.length).parallel().forEach(i -> ret[i] = (Element<V>) group.getElement(values[i], true));
+		// recomputing a sample detects a corrupted store or one written with another derivation. It does not
+		// detect a few substituted values, checking them all would cost as much as deriving them, so the store
+		// directory must be as trusted as the code (see GeneratorStore)
+		int last = values.length - 1;
+		int sample = from + new SecureRandom().nextInt(values.length - from);
+		if(!ret[last].isEquivalent(this.deriveGenerator(last)) || !ret[sample].isEquivalent(this.deriveGenerator(sample))) {
+			System.err.println("AbstractCyclicGroup: stored generators do not match their derivation, deriving them");
+			GeneratorStore.discard(group.getModulus(), GENERATORS_DERIVATION);
+			return from;
+		}
+
+		return values.length;
+	}
+
+	private void storeGenerators(Element<V>[] generators) {
+		if(GeneratorStore.isEnabled() && this instanceof GStarMod) {
+			BigInteger[] values = new BigInteger[generators.length];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = (BigInteger) generators[i].getValue();
+			}
+			GeneratorStore.store(((GStarMod) this).getModulus(), GENERATORS_DERIVATION, values);
+		}
+	}
+
+	private Element<V> deriveGenerator(int index) {
+		DeterministicRandomByteArraySequence.Factory factory = CTR_DRBG.getFactory();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(GENERATORS_DOMAIN);
+			byte[] hash = digest.digest(ByteBuffer.allocate(4).putInt(index).array());
+			ByteArray seed = ByteArray.getInstance(Arrays.copyOf(hash, factory.getSeedByteLength()));
+
+			return this.defaultGetRandomGenerators(DeterministicRandomByteSequence.getInstance(factory, seed)).get();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	// drb
 	public final DenseArray<Element<V>> getIndependentGeneratorsMPS(DeterministicRandomByteSequence randomByteSequence, int skip, int size) {
 		System.out.println("AbstractCyclicGroup: getIndependentGeneratorsMPS");
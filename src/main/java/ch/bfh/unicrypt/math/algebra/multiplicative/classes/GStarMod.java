@@ -1,4 +1,4 @@
-// drb modpow intercepts to MPBridge, legendre
+// drb modpow intercepts to MPBridge, legendre, batch membership
 /*
  * UniCrypt
  *
@@ -55,9 +55,13 @@ import ch.bfh.unicrypt.helper.sequence.functions.Mapping;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Set;
 import ch.bfh.unicrypt.math.algebra.multiplicative.abstracts.AbstractMultiplicativeCyclicGroup;
 import java.math.BigInteger;
+import java.util.stream.IntStream;
 
 // drb
 import mpservice.MPBridge;
+import mpservice.FixedBaseModPow;
+import mpservice.Jacobi;
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
 
 /**
  * This interface represents the concept of a sub-group G_m (of order m) of a cyclic group of integers Z*_n with the
@@ -84,8 +88,8 @@ public class GStarMod
     private final SpecialFactorization modulusFactorization;
     private final Factorization orderFactorization;
     private ZStarMod superGroup;
-
-    private BigInteger EIGHT = BigInteger.valueOf(8);
+    // drb modulus limbs for jacobi symbols, the modulus is odd for every group with cofactor 2
+    private int[] modulusLimbs;
 
     protected GStarMod(SpecialFactorization modulusFactorization, Factorization orderFactorization) {
         super(BigInteger.class);
@@ -161,51 +165,20 @@ public class GStarMod
         return this.getModulus().toString() + "," + this.getOrder().toString();
     }
 
-    // FIXME these two should go in MathUtil, along with the EIGHT constant
-
-    /** calculate whether the given value is a quadratic residue in the given modulus */
-    private boolean isQuadraticResidue(BigInteger value, BigInteger modulus) {
-        return legendre(value, modulus) == 1;
-    }
-
-    /** calculate the jacobi symbol (and hence legendre, since modulus is odd prime) */
-    private long legendre(BigInteger value, BigInteger mod) {
-        BigInteger modulus = mod;
-        BigInteger a = value.mod(modulus);
-        BigInteger t = MathUtil.ONE;
-
-        while (! a.equals(MathUtil.ZERO)) {
-          while (a.mod(MathUtil.TWO).equals(MathUtil.ZERO)) {
-            a = a.divide(MathUtil.TWO);
-
-            if (modulus.mod(EIGHT).equals(MathUtil.THREE) || modulus.mod(EIGHT).equals(MathUtil.FIVE)) {
-              t = t.negate();
-            }
-          }
-
-          BigInteger tmp = a;
-          a = modulus;
-          modulus = tmp;
-
-          if (a.mod(MathUtil.FOUR).equals(MathUtil.THREE) && modulus.mod(MathUtil.FOUR).equals(MathUtil.THREE)) {
-            t = t.negate();
-          }
-          a = a.mod(modulus);
-        }
-
-        if (modulus.equals(MathUtil.ONE)) {
-          return t.longValue();
-        }
-        else {
-          return 0;
+    /** calculate whether the given value is a quadratic residue in the given modulus (an odd prime) */
+    private boolean isQuadraticResidue(BigInteger value) {
+        if (this.modulusLimbs == null) {
+            this.modulusLimbs = Jacobi.limbs(this.modulus);
         }
+        return Jacobi.symbol(value, this.modulusLimbs) == 1;
     }
 
     @Override
     protected boolean abstractContains(final BigInteger value) {
         if(this.getCoFactor().equals(MathUtil.TWO)) {
             return value.signum() > 0
-                && isQuadraticResidue(value, this.modulus);
+                && value.compareTo(this.modulus) < 0
+                && isQuadraticResidue(value);
         }
         else {
             return value.signum() > 0
@@ -216,6 +189,25 @@ public class GStarMod
         }
     }
 
+    /**
+     * Membership test for many values at once, in parallel. Used when deserializing batches of votes.
+     * <p>
+     * @param values The values to test
+     * @return Whether each value belongs to the group
+     */
+    public final boolean[] contains(final BigInteger[] values) {
+        final boolean[] ret = new boolean[values.length];
+        IntStream.range(0, values.length).parallel().forEach(i -> ret[i] = this.contains(values[i]));
+        return ret;
+    }
+
+    /**
+     * Returns true if all the values belong to the group
+     */
+    public final boolean containsAll(final BigInteger[] values) {
+        return IntStream.range(0, values.length).parallel().allMatch(i -> this.contains(values[i]));
+    }
+
     @Override
     protected GStarModElement abstractGetElement(BigInteger value) {
         return new GStarModElement(this, value);
@@ -268,9 +260,35 @@ public class GStarMod
             } while (!MathUtil.areRelativelyPrime(alpha, this.getModulus()));
             element = this.abstractGetElement(alpha.modPow(this.getCoFactor(), this.modulus));
         } while (!this.isGenerator(element)); // this test could be skipped for a prime order
+        registerFixedBase(element);
         return element;
     }
 
+    /**
+     * Precomputes a fixed-base table for the given element (generator, public key..) so that its powers are
+     * computed with windowed exponentiation. Elements of other groups are ignored.
+     * <p>
+     * @param element The base
+     */
+    public static void registerFixedBase(Element element) {
+        if (element != null && element.getSet() instanceof GStarMod) {
+            GStarMod group = (GStarMod) element.getSet();
+            FixedBaseModPow.register((BigInteger) element.getValue(), group.getModulus(), group.getOrder().bitLength());
+        }
+    }
+
+    /**
+     * Releases a registration made with registerFixedBase, the table is removed once no other holder has
+     * registered the element.
+     * <p>
+     * @param element The base
+     */
+    public static void unregisterFixedBase(Element element) {
+        if (element != null && element.getSet() instanceof GStarMod) {
+            FixedBaseModPow.unregister((BigInteger) element.getValue(), ((GStarMod) element.getSet()).getModulus());
+        }
+    }
+
     // see Handbook of Applied Cryptography, Algorithm 4.80 and Note 4.81
     // the implemented method is a mix between 4.80 and 4.81
     // See also http://en.wikipedia.org/wiki/Schnorr_group
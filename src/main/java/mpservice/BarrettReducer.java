@@ -0,0 +1,40 @@
+package mpservice;
+
+import java.math.BigInteger;
+
+/**
+ * Barrett modular reduction for a fixed modulus
+ *
+ * BigInteger.mod is several times slower than a multiplication at our sizes, whereas a barrett
+ * reduction costs two multiplications and a few shifts.
+ */
+final class BarrettReducer {
+	private final BigInteger mod;
+	private final int k;
+	private final BigInteger mu;
+
+	BarrettReducer(BigInteger mod) {
+		this.mod = mod;
+		this.k = mod.bitLength();
+		this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(mod);
+	}
+
+	BigInteger getModulus() {
+		return mod;
+	}
+
+	// requires 0 <= x < mod^2
+	BigInteger reduce(BigInteger x) {
+		BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = x.subtract(q.multiply(mod));
+		while(r.compareTo(mod) >= 0) {
+			r = r.subtract(mod);
+		}
+
+		return r;
+	}
+
+	BigInteger multiply(BigInteger a, BigInteger b) {
+		return reduce(a.multiply(b));
+	}
+}
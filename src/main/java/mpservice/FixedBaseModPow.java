@@ -0,0 +1,205 @@
+package mpservice;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Fixed-base windowed exponentiation
+ *
+ * For a registered (base, modulus) we precompute base^(j * 2^(w*i)) for every window i of the
+ * exponent and every digit j in [1, 2^w - 1]. A modexp then costs one modular multiplication per
+ * non zero window (bits / w) instead of the ~1.2 * bits multiplications of a square and multiply.
+ *
+ * Tables are only worth it for bases that are reused thousands of times, like the group generator,
+ * the election public key or the pedersen randomization generator, so bases must be registered
+ * explicitly. When the table limit is reached, registering a new base evicts the least recently used table.
+ *
+ * Each register call takes a reference on its base, released by unregister. Several holders (elections with
+ * the same public key, worker sessions) can register the same base, and its table is only removed when the
+ * last reference is released.
+ */
+public final class FixedBaseModPow {
+
+	private static final boolean enabled = ConfigFactory.load().getBoolean("mpservice.use-fixed-base");
+	private static final int window = ConfigFactory.load().getInt("mpservice.fixed-base-window");
+	private static final int maxTables = ConfigFactory.load().getInt("mpservice.fixed-base-max-tables");
+
+	private static final ConcurrentHashMap<Key, Table> tables = new ConcurrentHashMap<Key, Table>();
+	// references per base, guarded by tables. Kept when a table is evicted, so that its holders still count
+	private static final HashMap<Key, Integer> references = new HashMap<Key, Integer>();
+
+	private FixedBaseModPow() {
+	}
+
+	/**
+	 * Precomputes a table for the given base and modulus, supporting exponents up to the bit length of the modulus.
+	 *
+	 * Returns true if a new table was built, false if it was already registered or could not be registered.
+	 * Either way the caller holds a reference on the base until it calls unregister (unless disabled).
+	 */
+	public static boolean register(BigInteger base, BigInteger mod) {
+		return register(base, mod, mod.bitLength());
+	}
+
+	public static boolean register(BigInteger base, BigInteger mod, int bits) {
+		if(!enabled) return false;
+
+		Key key = new Key(base, mod);
+		synchronized(tables) {
+			Integer count = references.get(key);
+			references.put(key, count == null ? 1 : count + 1);
+			Table existing = tables.get(key);
+			if(existing != null && existing.bits >= bits) {
+				existing.lastUsed = System.nanoTime();
+				return false;
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Table table = new Table(base, mod, bits, window);
+		synchronized(tables) {
+			Table existing = tables.get(key);
+			// released while the table was built, or a wide enough table was built concurrently
+			if(!references.containsKey(key) || (existing != null && existing.bits >= bits)) {
+				return false;
+			}
+			while(!tables.containsKey(key) && tables.size() >= maxTables) {
+				evictLeastRecentlyUsed();
+			}
+			tables.put(key, table);
+		}
+		System.out.println("FixedBaseModPow: registered base (" + bits + " bits, w=" + window + ") [" + (System.currentTimeMillis() - now) + " ms]");
+
+		return true;
+	}
+
+	private static void evictLeastRecentlyUsed() {
+		Key oldest = null;
+		long oldestUse = Long.MAX_VALUE;
+		for(java.util.Map.Entry<Key, Table> entry : tables.entrySet()) {
+			if(entry.getValue().lastUsed < oldestUse) {
+				oldest = entry.getKey();
+				oldestUse = entry.getValue().lastUsed;
+			}
+		}
+		if(oldest != null) {
+			tables.remove(oldest);
+			System.out.println("FixedBaseModPow: table limit (" + maxTables + ") reached, evicted least recently used table");
+		}
+	}
+
+	/**
+	 * Releases a reference taken by register, the table is removed with the last one
+	 */
+	public static void unregister(BigInteger base, BigInteger mod) {
+		Key key = new Key(base, mod);
+		synchronized(tables) {
+			Integer count = references.get(key);
+			if(count == null) {
+				return;
+			}
+			if(count > 1) {
+				references.put(key, count - 1);
+			}
+			else {
+				references.remove(key);
+				tables.remove(key);
+			}
+		}
+	}
+
+	public static void clear() {
+		synchronized(tables) {
+			references.clear();
+			tables.clear();
+		}
+	}
+
+	public static boolean isRegistered(BigInteger base, BigInteger mod) {
+		return tables.containsKey(new Key(base, mod));
+	}
+
+	/**
+	 * Returns base^pow mod mod using a precomputed table, or null if there is no usable table
+	 */
+	public static BigInteger modPow(BigInteger base, BigInteger pow, BigInteger mod) {
+		if(tables.isEmpty()) return null;
+
+		Table table = tables.get(new Key(base, mod));
+		if(table == null || pow.signum() < 0 || pow.bitLength() > table.bits) return null;
+		table.lastUsed = System.nanoTime();
+
+		return table.modPow(pow);
+	}
+
+	private static final class Key {
+		private final BigInteger base;
+		private final BigInteger mod;
+		private final int hash;
+
+		Key(BigInteger base, BigInteger mod) {
+			this.base = base;
+			this.mod = mod;
+			this.hash = 31 * base.hashCode() + mod.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key other = (Key) o;
+
+			return hash == other.hash && base.equals(other.base) && mod.equals(other.mod);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Table {
+		private final BarrettReducer reducer;
+		private final int bits;
+		private final int width;
+		// rows[i][j] = base^((j + 1) * 2^(width * i))
+		private final BigInteger[][] rows;
+		// for eviction only, racy updates are harmless
+		long lastUsed = System.nanoTime();
+
+		Table(BigInteger base, BigInteger mod, int bits, int width) {
+			this.reducer = new BarrettReducer(mod);
+			this.bits = bits;
+			this.width = width;
+
+			int digits = (1 << width) - 1;
+			int windows = (bits + width - 1) / width;
+			rows = new BigInteger[windows][digits];
+
+			BigInteger current = base.mod(mod);
+			for(int i = 0; i < windows; i++) {
+				BigInteger[] row = rows[i];
+				row[0] = current;
+				for(int j = 1; j < digits; j++) {
+					row[j] = reducer.multiply(row[j - 1], current);
+				}
+				current = reducer.multiply(row[digits - 1], current);
+			}
+		}
+
+		BigInteger modPow(BigInteger pow) {
+			BigInteger result = null;
+			int windows = (pow.bitLength() + width - 1) / width;
+			for(int i = 0; i < windows; i++) {
+				int digit = MultiExp.digit(pow, i * width, width);
+				if(digit != 0) {
+					BigInteger factor = rows[i][digit - 1];
+					result = (result == null) ? factor : reducer.multiply(result, factor);
+				}
+			}
+
+			return (result == null) ? BigInteger.ONE.mod(reducer.getModulus()) : result;
+		}
+	}
+}
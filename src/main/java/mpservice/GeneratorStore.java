@@ -0,0 +1,213 @@
+package mpservice;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Persistent store of independent generators
+ *
+ * Generators depend only on the group and the derivation (see AbstractCyclicGroup.getIndependentGeneratorsP),
+ * so they are stored once per (modulus, derivation) in a file of fixed width big endian values, generator i
+ * at offset header + i * width. Files are read and extended through memory maps. A larger election only
+ * appends the generators that are missing, and mixers and verifiers on the same machine share the file
+ * (reads take a shared file lock, writes an exclusive one, so a read never sees a file being rewritten).
+ *
+ * The store directory must be as trusted as the code: generators with known discrete logs would break the
+ * soundness of the shuffle proofs. Loading checks group membership and callers recompute a sample of the loaded
+ * values, which detects a corrupted file or one written with another derivation, but not a few substituted
+ * values. A file that fails these checks is discarded and rewritten.
+ */
+public final class GeneratorStore {
+
+	private static final String dir = ConfigFactory.load().getString("generators-store-dir");
+	private static final byte[] MAGIC = "AGGEN001".getBytes(StandardCharsets.US_ASCII);
+	// magic, width, sha-256 of the key
+	private static final int HEADER = MAGIC.length + 4 + 32;
+	// file locks are held by the whole JVM and overlapping ones throw OverlappingFileLockException, so the
+	// threads of this process take turns here
+	private static final Object fileLocks = new Object();
+
+	private GeneratorStore() {
+	}
+
+	public static boolean isEnabled() {
+		return !dir.isEmpty();
+	}
+
+	/**
+	 * Returns the stored values of generators 0..n-1 for n <= count, an empty array if none are stored
+	 */
+	public static BigInteger[] load(BigInteger modulus, String derivation, int count) {
+		if(!isEnabled()) return new BigInteger[0];
+
+		Path path = path(modulus, derivation);
+		if(!Files.exists(path)) return new BigInteger[0];
+
+		synchronized(fileLocks) {
+			return load(path, modulus, derivation, count);
+		}
+	}
+
+	private static BigInteger[] load(Path path, BigInteger modulus, String derivation, int count) {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			FileLock lock = channel.lock(0, Long.MAX_VALUE, true)) {
+
+			int width = width(modulus);
+			if(!checkHeader(channel, modulus, derivation, width)) {
+				System.err.println("GeneratorStore: ignoring " + path + ", header does not match");
+				return new BigInteger[0];
+			}
+			int n = (int) Math.min(count, (channel.size() - HEADER) / width);
+			if(n <= 0) return new BigInteger[0];
+
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) n * width);
+			BigInteger[] ret = new BigInteger[n];
+			IntStream.range(0, n).parallel().forEach(i -> {
+				byte[] bytes = new byte[width];
+				ByteBuffer record = map.duplicate();
+				record.position(i * width);
+				record.get(bytes);
+				ret[i] = new BigInteger(1, bytes);
+			});
+
+			return ret;
+		}
+		catch(IOException e) {
+			System.err.println("GeneratorStore: could not read " + path + ": " + e);
+			return new BigInteger[0];
+		}
+	}
+
+	/**
+	 * Appends the given generators 0..values.length-1 beyond those already stored
+	 */
+	public static void store(BigInteger modulus, String derivation, BigInteger[] values) {
+		if(!isEnabled() || values.length == 0) return;
+
+		Path path = path(modulus, derivation);
+		synchronized(fileLocks) {
+			store(path, modulus, derivation, values);
+		}
+	}
+
+	private static void store(Path path, BigInteger modulus, String derivation, BigInteger[] values) {
+		try {
+			Files.createDirectories(path.getParent());
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+
+				int width = width(modulus);
+				if(channel.size() < HEADER) {
+					channel.truncate(0);
+					channel.write(header(modulus, derivation, width), 0);
+				}
+				else if(!checkHeader(channel, modulus, derivation, width)) {
+					System.err.println("GeneratorStore: rewriting " + path + ", header does not match");
+					channel.truncate(0);
+					channel.write(header(modulus, derivation, width), 0);
+				}
+				// a partial record from an interrupted write is overwritten
+				int stored = (int) ((channel.size() - HEADER) / width);
+				if(stored >= values.length) return;
+
+				long now = System.currentTimeMillis();
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + (long) stored * width, (long) (values.length - stored) * width);
+				IntStream.range(stored, values.length).parallel().forEach(i -> {
+					ByteBuffer record = map.duplicate();
+					record.position((i - stored) * width);
+					record.put(toBytes(values[i], width));
+				});
+				map.force();
+				System.out.println("GeneratorStore: stored generators " + stored + " to " + values.length + " [" + (System.currentTimeMillis() - now) + " ms]");
+			}
+		}
+		catch(IOException e) {
+			System.err.println("GeneratorStore: could not write " + path + ": " + e);
+		}
+	}
+
+	/**
+	 * Empties the stored generators of the given group and derivation, the next store writes them all again
+	 */
+	public static void discard(BigInteger modulus, String derivation) {
+		if(!isEnabled()) return;
+
+		Path path = path(modulus, derivation);
+		if(!Files.exists(path)) return;
+		synchronized(fileLocks) {
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+
+				channel.truncate(0);
+				System.err.println("GeneratorStore: discarded " + path);
+			}
+			catch(IOException e) {
+				System.err.println("GeneratorStore: could not discard " + path + ": " + e);
+			}
+		}
+	}
+
+	private static int width(BigInteger modulus) {
+		return (modulus.bitLength() + 7) / 8;
+	}
+
+	private static byte[] key(BigInteger modulus, String derivation) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(modulus.toByteArray());
+			return digest.digest(derivation.getBytes(StandardCharsets.UTF_8));
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Path path(BigInteger modulus, String derivation) {
+		StringBuilder name = new StringBuilder();
+		for(byte b : Arrays.copyOf(key(modulus, derivation), 16)) {
+			name.append(String.format("%02x", b));
+		}
+
+		return Paths.get(dir, name.append(".gen").toString());
+	}
+
+	private static ByteBuffer header(BigInteger modulus, String derivation, int width) {
+		ByteBuffer ret = ByteBuffer.allocate(HEADER);
+		ret.put(MAGIC).putInt(width).put(key(modulus, derivation));
+		ret.flip();
+
+		return ret;
+	}
+
+	private static boolean checkHeader(FileChannel channel, BigInteger modulus, String derivation, int width) throws IOException {
+		ByteBuffer read = ByteBuffer.allocate(HEADER);
+		while(read.hasRemaining() && channel.read(read, read.position()) > 0);
+		read.flip();
+
+		return read.limit() == HEADER && read.equals(header(modulus, derivation, width));
+	}
+
+	// right aligned, toByteArray may have a leading sign byte
+	private static byte[] toBytes(BigInteger value, int width) {
+		byte[] bytes = value.toByteArray();
+		byte[] ret = new byte[width];
+		int length = Math.min(bytes.length, width);
+		System.arraycopy(bytes, bytes.length - length, ret, width - length, length);
+
+		return ret;
+	}
+}
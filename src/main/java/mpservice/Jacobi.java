@@ -0,0 +1,177 @@
+package mpservice;
+
+import java.math.BigInteger;
+
+/**
+ * Jacobi symbols (a/n) for odd n > 0, used for membership tests in safe prime groups
+ *
+ * Binary algorithm on little endian int limbs: strip factors of two, apply reciprocity when
+ * swapping, subtract. The loop works in place on per thread scratch arrays, so the only
+ * allocation per symbol is reading the value out of its BigInteger. The BigInteger version
+ * (mod, divide and compare per step) allocated several objects per iteration.
+ *
+ * For a prime modulus the Jacobi symbol is the Legendre symbol, 1 for quadratic residues.
+ */
+public final class Jacobi {
+
+	private static final long MASK = 0xffffffffL;
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private Jacobi() {
+	}
+
+	/**
+	 * The limbs of an odd modulus, to be kept by callers that compute many symbols with it
+	 */
+	public static int[] limbs(BigInteger n) {
+		if(n.signum() <= 0 || !n.testBit(0)) throw new IllegalArgumentException("modulus must be odd and positive");
+		byte[] bytes = n.toByteArray();
+		int[] ret = new int[limbCount(bytes.length)];
+		fromBytes(bytes, ret);
+
+		return ret;
+	}
+
+	public static int symbol(BigInteger a, BigInteger n) {
+		return symbol(a, limbs(n));
+	}
+
+	/**
+	 * Returns the jacobi symbol (a/n), with n as returned by limbs. a must be non negative.
+	 */
+	public static int symbol(BigInteger a, int[] n) {
+		if(a.signum() < 0) throw new IllegalArgumentException("negative value");
+		byte[] bytes = a.toByteArray();
+		Scratch s = scratch.get().ensure(Math.max(limbCount(bytes.length), n.length));
+		int aLen = fromBytes(bytes, s.a);
+		System.arraycopy(n, 0, s.n, 0, n.length);
+		int nLen = length(s.n, n.length);
+
+		return symbol(s.a, aLen, s.n, nLen);
+	}
+
+	// destroys a and n
+	private static int symbol(int[] a, int aLen, int[] n, int nLen) {
+		int t = 1;
+
+		while(aLen > 0) {
+			int zeros = trailingZeros(a, aLen);
+			if(zeros > 0) {
+				aLen = shiftRight(a, aLen, zeros);
+				// (2/n) = -1 iff n = 3, 5 mod 8
+				int r = n[0] & 7;
+				if((zeros & 1) == 1 && (r == 3 || r == 5)) t = -t;
+			}
+			// both odd now
+			if(compare(a, aLen, n, nLen) < 0) {
+				int[] tmp = a; a = n; n = tmp;
+				int tmpLen = aLen; aLen = nLen; nLen = tmpLen;
+				// reciprocity
+				if((a[0] & 3) == 3 && (n[0] & 3) == 3) t = -t;
+			}
+			aLen = subtract(a, aLen, n, nLen);
+		}
+
+		return (nLen == 1 && n[0] == 1) ? t : 0;
+	}
+
+	private static int limbCount(int bytes) {
+		return (bytes + 3) / 4;
+	}
+
+	// big endian two's complement bytes of a non negative value into little endian limbs, returns the length
+	private static int fromBytes(byte[] bytes, int[] dst) {
+		int len = 0;
+		int limb = 0;
+		int shift = 0;
+		for(int i = bytes.length - 1; i >= 0; i--) {
+			limb |= (bytes[i] & 0xff) << shift;
+			shift += 8;
+			if(shift == 32) {
+				dst[len++] = limb;
+				limb = 0;
+				shift = 0;
+			}
+		}
+		if(shift > 0) dst[len++] = limb;
+
+		return length(dst, len);
+	}
+
+	private static int length(int[] x, int len) {
+		while(len > 0 && x[len - 1] == 0) len--;
+
+		return len;
+	}
+
+	private static int trailingZeros(int[] x, int len) {
+		int i = 0;
+		while(x[i] == 0) i++;
+
+		return (i << 5) + Integer.numberOfTrailingZeros(x[i]);
+	}
+
+	private static int shiftRight(int[] x, int len, int bits) {
+		int words = bits >>> 5;
+		int shift = bits & 31;
+		int newLen = len - words;
+		if(shift == 0) {
+			System.arraycopy(x, words, x, 0, newLen);
+		}
+		else {
+			for(int i = 0; i < newLen - 1; i++) {
+				x[i] = (x[i + words] >>> shift) | (x[i + words + 1] << (32 - shift));
+			}
+			x[newLen - 1] = x[len - 1] >>> shift;
+		}
+
+		return length(x, newLen);
+	}
+
+	private static int compare(int[] x, int xLen, int[] y, int yLen) {
+		if(xLen != yLen) return xLen < yLen ? -1 : 1;
+		for(int i = xLen - 1; i >= 0; i--) {
+			if(x[i] != y[i]) return Integer.compareUnsigned(x[i], y[i]);
+		}
+
+		return 0;
+	}
+
+	// x -= y, requires x >= y
+	private static int subtract(int[] x, int xLen, int[] y, int yLen) {
+		long borrow = 0;
+		int i = 0;
+		for(; i < yLen; i++) {
+			long d = (x[i] & MASK) - (y[i] & MASK) - borrow;
+			x[i] = (int) d;
+			borrow = (d >> 63) & 1;
+		}
+		for(; borrow != 0 && i < xLen; i++) {
+			long d = (x[i] & MASK) - borrow;
+			x[i] = (int) d;
+			borrow = (d >> 63) & 1;
+		}
+
+		return length(x, xLen);
+	}
+
+	private static final class Scratch {
+		int[] a = new int[0];
+		int[] n = new int[0];
+
+		Scratch ensure(int limbs) {
+			if(a.length < limbs) {
+				a = new int[limbs];
+				n = new int[limbs];
+			}
+
+			return this;
+		}
+	}
+}
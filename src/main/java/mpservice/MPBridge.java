@@ -1,25 +1,41 @@
 package mpservice;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 import mpservice.ModPow;
 import java.math.BigInteger;
 import java.util.function.Supplier;
 import com.squareup.jnagmp.Gmp;
+import com.squareup.jnagmp.GmpInteger;
+import com.typesafe.config.ConfigFactory;
 
 public class MPBridge {
 
 	private static boolean useGmp = false;
 	private static boolean useExtractor = false;
+	private static int multiExpChunk = ConfigFactory.load().getInt("mpservice.multiexp-chunk-size");
+	private static boolean constantTimeSecrets = ConfigFactory.load().getBoolean("mpservice.constant-time-secret-exponents");
 	private BigInteger dummy = new BigInteger("2");
 	private BigInteger modulus = null;
 	private boolean recording = false;
 	private boolean replaying = false;
 	private boolean replayingDebug = false;
-	private LinkedList<ModPow2> requests = new LinkedList<ModPow2>();
-	private List<BigInteger> answers = null;
-	private List<ModPowResult> answersDebug = null;
+	private boolean deferring = false;
+	// modexps requested while set have secret exponents (see secret)
+	private boolean secret = false;
+	// recorded requests, requests[0, requestCount)
+	private ModPow2[] requests = new ModPow2[1024];
+	private int requestCount = 0;
+	// futures for deferred requests, futures[k] is completed with the answer to requests[k]
+	private ModPowFuture[] futures = new ModPowFuture[1024];
+	// answers being replayed, answers[answerCursor] is the next one
+	private BigInteger[] answers = null;
+	private ModPowResult[] answersDebug = null;
+	private int answerCursor = 0;
 
 	// debug vars
 	public static long total = 0;
@@ -64,50 +80,87 @@ public class MPBridge {
 
 	public static void startRecord(String value) {
 		i().dummy = new BigInteger(value);
-		if(i().requests.size() != 0)	throw new IllegalStateException();
+		if(i().requestCount != 0)	throw new IllegalStateException();
 		i().recording = useExtractor;
 		i().modulus = null;
 	}
 
 	public static ModPow2[] stopRecord() {
-		i().recording = false;
+		MPBridge i = i();
+		i.recording = false;
 
-		return i().requests.toArray(new ModPow2[0]);
+		return Arrays.copyOf(i.requests, i.requestCount);
 	}
 
+	// the answers array is not copied, it must not be modified until stopReplay
 	public static void startReplay(BigInteger[] answers_) {
-		if(answers_.length != i().requests.size()) throw new IllegalArgumentException(answers_.length + "!=" + i().requests.size());
-		i().answers = new LinkedList<BigInteger>(Arrays.asList(answers_));
+		MPBridge i = i();
+		if(answers_.length != i.requestCount) throw new IllegalArgumentException(answers_.length + "!=" + i.requestCount);
+		i.answers = answers_;
+		i.answerCursor = 0;
 
-		i().replaying = true;
+		i.replaying = true;
+	}
+
+	// replays answers to requests recorded earlier, possibly on another thread (see MPBridgeS.exAsync)
+	public static void startReplayDetached(BigInteger[] answers_) {
+		MPBridge i = i();
+		if(i.recording || i.replaying || i.requestCount != 0) throw new IllegalStateException();
+		i.answers = answers_;
+		i.answerCursor = 0;
+
+		i.replaying = true;
+	}
+
+	// ends a replay started with startReplayDetached, also if it failed before consuming all the answers
+	public static void stopReplayDetached() {
+		MPBridge i = i();
+		i.answers = null;
+		i.answerCursor = 0;
+		i.replaying = false;
+		reset();
 	}
 
 	public static void startReplayDebug(ModPowResult[] answers_) {
-		if(answers_.length != i().requests.size()) throw new IllegalArgumentException(answers_.length + "!=" + i().requests.size());
-		i().answersDebug = new LinkedList<ModPowResult>(Arrays.asList(answers_));
+		MPBridge i = i();
+		if(answers_.length != i.requestCount) throw new IllegalArgumentException(answers_.length + "!=" + i.requestCount);
+		i.answersDebug = answers_;
+		i.answerCursor = 0;
 
-		i().replayingDebug = true;
+		i.replayingDebug = true;
 	}
 
 	public static void stopReplay() {
-		if(i().answers.size() != 0) throw new IllegalStateException();
+		MPBridge i = i();
+		if(i.answerCursor != i.answers.length) throw new IllegalStateException();
 
-		i().replaying = false;
+		i.answers = null;
+		i.replaying = false;
 	}
 
 	public static void stopReplayDebug() {
-		if(i().answersDebug.size() != 0) throw new IllegalStateException();
+		MPBridge i = i();
+		if(i.answerCursor != i.answersDebug.length) throw new IllegalStateException();
 
-		i().replayingDebug = false;
+		i.answersDebug = null;
+		i.replayingDebug = false;
 	}
 
 	public static void reset() {
-		i().requests.clear();
+		MPBridge i = i();
+		// release references but keep the capacity for the next block
+		Arrays.fill(i.requests, 0, i.requestCount, null);
+		Arrays.fill(i.futures, 0, Math.min(i.requestCount, i.futures.length), null);
+		i.requestCount = 0;
 	}
 
 	public static void addModPow(BigInteger base, BigInteger pow, BigInteger mod) {
 		MPBridge i = i();
 		if(!i.recording) throw new IllegalStateException();
+		record(i, base, pow, mod);
+	}
+
+	private static void record(MPBridge i, BigInteger base, BigInteger pow, BigInteger mod) {
 		if(i.modulus == null) {
 			i.modulus = mod;
 		}
@@ -116,59 +169,237 @@ public class MPBridge {
 			throw new RuntimeException(i.modulus + "!=" + mod);
 		}
 		extracted++;
-		i.requests.add(new ModPow2(base, pow));
+		if(i.requestCount == i.requests.length) {
+			i.requests = Arrays.copyOf(i.requests, i.requests.length * 2);
+		}
+		i.requests[i.requestCount++] = new ModPow2(base, pow, i.secret);
 	}
 
 	public static BigInteger getModPow() {
-		if(i().recording) throw new IllegalStateException();
+		MPBridge i = i();
+		if(i.recording) throw new IllegalStateException();
 
-		return i().answers.remove(0);
+		return i.answers[i.answerCursor++];
 	}
 
 	public static ModPowResult getModPowDebug() {
-		if(i().recording) throw new IllegalStateException();
+		MPBridge i = i();
+		if(i.recording) throw new IllegalStateException();
 
-		return i().answersDebug.remove(0);
+		return i.answersDebug[i.answerCursor++];
 	}
 
-	public static LinkedList<ModPow2> getRequests() {
-		if(i().recording) throw new IllegalStateException();
+	public static ModPow2[] getRequests() {
+		MPBridge i = i();
+		if(i.recording) throw new IllegalStateException();
 
-		return i().requests;
+		return Arrays.copyOf(i.requests, i.requestCount);
 	}
 
 	public static <T> T ex(Supplier<T> f, String v) {
 		a();
 	 	startRecord(v);
 	 	long now = System.currentTimeMillis();
-	 	T ret = f.get();
-	 	long r = System.currentTimeMillis() - now;
-	 	System.out.println("R: [" + r + " ms]");
-	 	mpservice.ModPow2[] reqs = stopRecord();
+		T ret;
+		try {
+			ret = f.get();
+			long r = System.currentTimeMillis() - now;
+			System.out.println("R: [" + r + " ms]");
+			mpservice.ModPow2[] reqs = stopRecord();
+			b(3);
+			if(reqs.length > 0) {
+				long now2 = System.currentTimeMillis();
+				// FIXME
+				// BigInteger[] answers = mpservice.MPService.computeDebug(reqs, i().modulus);
+				ModPowResult[] answers = mpservice.MPService.computeDebug(reqs, i().modulus);
+				long c = System.currentTimeMillis() - now2;
+				// FIXME
+				// startReplay(answers);
+				startReplayDebug(answers);
+				ret = f.get();
+				long t = System.currentTimeMillis() - now;
+				System.out.println("\nC: [" + c + " ms] T: [" + t + " ms] R+C: [" + (r+c) + " ms]");
+				// FIXME
+				// stopReplay();
+				stopReplayDebug();
+			}
+		}
+		finally {
+			// leaves the thread usable for the next block if f or the service failed
+			MPBridge i = i();
+			i.recording = false;
+			i.replayingDebug = false;
+			i.answersDebug = null;
+			reset();
+		}
+
+		return ret;
+	}
+
+	public static <T> T ex(Supplier<T> f) {
+		return ex(f, "2");
+	}
+
+	/**
+	 * Single pass extraction
+	 *
+	 * Unlike ex, f runs only once. It requests modexps with deferModPow and returns a continuation that
+	 * builds the result from the futures. The requests are computed as one batch after f returns, and
+	 * then the continuation is called. Modexps going through modPow inside f are computed immediately.
+	 */
+	public static <T> T exDeferred(Supplier<Supplier<T>> f) {
+		MPBridge i = i();
+		if(i.deferring || i.requestCount != 0) throw new IllegalStateException();
+		a();
+		i.deferring = useExtractor;
+		i.modulus = null;
+		long now = System.currentTimeMillis();
+		Supplier<T> continuation;
+		// the requests are cleared whatever happens, this thread may be a pooled one
+		try {
+			try {
+				continuation = f.get();
+			}
+			finally {
+				i.deferring = false;
+			}
+			long r = System.currentTimeMillis() - now;
+			System.out.println("R: [" + r + " ms]");
+			b(3);
+			if(i.requestCount > 0) {
+				long now2 = System.currentTimeMillis();
+				BigInteger[] answers = mpservice.MPService.compute(Arrays.copyOf(i.requests, i.requestCount), i.modulus);
+				for(int k = 0; k < answers.length; k++) {
+					i.futures[k].complete(answers[k]);
+				}
+				long c = System.currentTimeMillis() - now2;
+				System.out.println("\nC: [" + c + " ms] R+C: [" + (r+c) + " ms]");
+			}
+		}
+		catch(RuntimeException e) {
+			failPending(i, e);
+			throw e;
+		}
+		finally {
+			reset();
+		}
+
+		return continuation.get();
+	}
+
+	private static void failPending(MPBridge i, RuntimeException cause) {
+		for(int k = 0; k < Math.min(i.requestCount, i.futures.length); k++) {
+			if(i.futures[k] != null && !i.futures[k].isDone()) i.futures[k].fail(cause);
+		}
+	}
+
+	/**
+	 * Requests base^pow mod mod inside an exDeferred block, outside of one the modexp is computed immediately
+	 */
+	public static ModPowFuture deferModPow(BigInteger base, BigInteger pow, BigInteger mod) {
+		MPBridge i = i();
+		total++;
+		if(!i.deferring) {
+			return new ModPowFuture(modPowLocal(base, pow, mod, useGmp, i.secret));
+		}
+		record(i, base, pow, mod);
+		if(i.futures.length < i.requests.length) {
+			i.futures = Arrays.copyOf(i.futures, i.requests.length);
+		}
+		ModPowFuture future = new ModPowFuture();
+		i.futures[i.requestCount - 1] = future;
+
+		return future;
+	}
+
+	/**
+	 * Parallel version of ex for loops, returns f(0), .., f(n - 1)
+	 *
+	 * The index range is split into contiguous segments that run as fork join tasks. Each segment records
+	 * into its own context, installed on whichever thread runs it, and the requests of all segments are
+	 * computed as one batch in index order. The answers are then split back by segment and replayed in
+	 * parallel, so f must request the same modexps for a given index in both passes, as with ex.
+	 */
+	public static <T> List<T> exParallel(int n, IntFunction<T> f, String v) {
+		MPBridge parent = i();
+		if(parent.recording || parent.replaying || parent.replayingDebug || parent.deferring) throw new IllegalStateException();
+		a();
+		int segments = Math.max(1, Math.min(n, ForkJoinPool.getCommonPoolParallelism() * 4));
+		MPBridge[] contexts = new MPBridge[segments];
+		Object[] results = new Object[n];
+		BigInteger dummy = new BigInteger(v);
+		long now = System.currentTimeMillis();
+		IntStream.range(0, segments).parallel().forEach(s -> {
+			MPBridge context = new MPBridge();
+			context.dummy = dummy;
+			context.secret = parent.secret;
+			context.recording = useExtractor;
+			contexts[s] = context;
+			runSegment(context, s, segments, n, f, results);
+			context.recording = false;
+		});
+		long r = System.currentTimeMillis() - now;
+		System.out.println("R: [" + r + " ms]");
 		b(3);
-		if(reqs.length > 0) {
+
+		// segment s owns requests[offsets[s], offsets[s + 1])
+		int[] offsets = new int[segments + 1];
+		BigInteger modulus = null;
+		for(int s = 0; s < segments; s++) {
+			MPBridge context = contexts[s];
+			offsets[s + 1] = offsets[s] + context.requestCount;
+			if(modulus == null) {
+				modulus = context.modulus;
+			}
+			else if(context.modulus != null && !modulus.equals(context.modulus)) {
+				throw new RuntimeException(modulus + "!=" + context.modulus);
+			}
+		}
+		if(offsets[segments] > 0) {
+			ModPow2[] requests = new ModPow2[offsets[segments]];
+			for(int s = 0; s < segments; s++) {
+				System.arraycopy(contexts[s].requests, 0, requests, offsets[s], contexts[s].requestCount);
+			}
 			long now2 = System.currentTimeMillis();
-			// FIXME
-			// BigInteger[] answers = mpservice.MPService.computeDebug(reqs, i().modulus);
-			ModPowResult[] answers = mpservice.MPService.computeDebug(reqs, i().modulus);
+			BigInteger[] answers = MPService.compute(requests, modulus);
 			long c = System.currentTimeMillis() - now2;
-			// FIXME
-			// startReplay(answers);
-			startReplayDebug(answers);
-			ret = f.get();
+			IntStream.range(0, segments).parallel().forEach(s -> {
+				MPBridge context = contexts[s];
+				context.answers = Arrays.copyOfRange(answers, offsets[s], offsets[s + 1]);
+				context.answerCursor = 0;
+				context.replaying = true;
+				runSegment(context, s, segments, n, f, results);
+				if(context.answerCursor != context.answers.length) throw new IllegalStateException();
+			});
 			long t = System.currentTimeMillis() - now;
 			System.out.println("\nC: [" + c + " ms] T: [" + t + " ms] R+C: [" + (r+c) + " ms]");
-			// FIXME
-			// stopReplay();
-			stopReplayDebug();
 		}
-		reset();
+
+		List<T> ret = new ArrayList<T>(n);
+		for(int k = 0; k < n; k++) {
+			@SuppressWarnings("unchecked")
+			T next = (T) results[k];
+			ret.add(next);
+		}
 
 		return ret;
 	}
 
-	public static <T> T ex(Supplier<T> f) {
-		return ex(f, "2");
+	// runs f over the indices of segment s with context installed on the current thread, restoring the
+	// previous context after, as fork join threads may run other tasks while waiting inside f
+	private static <T> void runSegment(MPBridge context, int s, int segments, int n, IntFunction<T> f, Object[] results) {
+		MPBridge previous = instance.get();
+		instance.set(context);
+		try {
+			int from = (int) ((long) n * s / segments);
+			int to = (int) ((long) n * (s + 1) / segments);
+			for(int k = from; k < to; k++) {
+				results[k] = f.apply(k);
+			}
+		}
+		finally {
+			instance.set(previous);
+		}
 	}
 
 	public static BigInteger modPow(BigInteger base, BigInteger pow, BigInteger mod) {
@@ -192,13 +423,115 @@ public class MPBridge {
         }
         else {
             total++;
-            if(useGmp) {
-                return Gmp.modPowInsecure(base, pow, mod);
-            }
-            else {
-                return base.modPow(pow, mod);
+            return modPowLocal(base, pow, mod, useGmp, i.secret);
+        }
+    }
+
+    /**
+     * Runs f with the modexps it requests marked as having secret exponents, like private keys, proof randomness or
+     * re-encryption randomizations
+     *
+     * The mark travels with the recorded requests, so these are still batched and distributed, but
+     * they are computed with gmp's side channel resistant powm_sec and never with fixed-base tables.
+     */
+    public static <T> T secret(Supplier<T> f) {
+        MPBridge i = i();
+        boolean previous = i.secret;
+        i.secret = true;
+        try {
+            return f.get();
+        }
+        finally {
+            i.secret = previous;
+        }
+    }
+
+    /**
+     * Returns the modulus to use for a batch of modexps, with gmp it is imported into native memory
+     * once here and not once per modexp
+     */
+    public static BigInteger batchModulus(BigInteger mod, boolean gmp) {
+        return gmp ? new GmpInteger(mod) : mod;
+    }
+
+    /**
+     * Computes a modexp in this jvm, using a fixed-base table if one is registered for (base, mod)
+     */
+    public static BigInteger modPowLocal(BigInteger base, BigInteger pow, BigInteger mod, boolean gmp) {
+        return modPowLocal(base, pow, mod, gmp, false);
+    }
+
+    /**
+     * As above, secret exponents skip the fixed-base tables (whose lookups depend on the exponent digits)
+     * and use powm_sec with gmp. Gmp needs an odd modulus, which is always the case for our groups.
+     */
+    public static BigInteger modPowLocal(BigInteger base, BigInteger pow, BigInteger mod, boolean gmp, boolean secret) {
+        if(secret && constantTimeSecrets) {
+            return gmp ? Gmp.modPowSecure(base, pow, mod) : base.modPow(pow, mod);
+        }
+        BigInteger fixed = FixedBaseModPow.modPow(base, pow, mod);
+        if(fixed != null) {
+            return fixed;
+        }
+        else if(gmp) {
+            return Gmp.modPowInsecure(base, pow, mod);
+        }
+        else {
+            return base.modPow(pow, mod);
+        }
+    }
+
+    /**
+     * Computes Prod(base_i^pow_i) mod mod as a single multi-exponentiation request
+     *
+     * Inside an extractor block the bases may depend on the recorded modexps, so the record pass returns a
+     * dummy and the product is sent to the service as its own request in the replay pass.
+     */
+    public static BigInteger multiExp(ModPow2[] work, BigInteger mod) {
+        MPBridge i = i();
+        if(i.recording) {
+            return i.dummy;
+        }
+        total += work.length;
+        if(i.secret && constantTimeSecrets) {
+            return secretProduct(work, mod);
+        }
+        else if(useExtractor) {
+            return MPService.computeProduct(work, mod);
+        }
+        else {
+            return MultiExp.computeParallel(work, mod, multiExpChunk);
+        }
+    }
+
+    // the window lookups of a multi-exponentiation depend on the exponent digits, so the terms of a secret one
+    // are computed as individual secret modexps
+    private static BigInteger secretProduct(ModPow2[] work, BigInteger mod) {
+        ModPow2[] secret = new ModPow2[work.length];
+        for(int k = 0; k < work.length; k++) {
+            secret[k] = new ModPow2(work[k].base(), work[k].pow(), true);
+        }
+        BigInteger[] terms;
+        if(useExtractor) {
+            terms = MPService.compute(secret, mod);
+        }
+        else {
+            terms = new BigInteger[work.length];
+            for(int k = 0; k < work.length; k++) {
+                terms[k] = modPowLocal(work[k].base(), work[k].pow(), mod, useGmp, true);
             }
         }
+        BigInteger ret = BigInteger.ONE;
+        for(BigInteger term : terms) {
+            ret = ret.multiply(term).mod(mod);
+        }
+
+        return ret;
+    }
+
+    // units per chunk of a distributed multi-exponentiation
+    public static int getMultiExpChunk() {
+        return multiExpChunk;
     }
 
     public static BigInteger getModulus() {
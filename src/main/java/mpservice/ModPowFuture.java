@@ -0,0 +1,42 @@
+package mpservice;
+
+import java.math.BigInteger;
+
+/**
+ * A modexp requested with MPBridge.deferModPow
+ *
+ * The value becomes available once the enclosing MPBridge.exDeferred block has computed its batch,
+ * that is, inside the continuation returned to exDeferred.
+ */
+public final class ModPowFuture {
+
+	private BigInteger value;
+	private RuntimeException failure;
+
+	ModPowFuture() {
+	}
+
+	ModPowFuture(BigInteger value) {
+		this.value = value;
+	}
+
+	void complete(BigInteger value) {
+		this.value = value;
+	}
+
+	// the batch could not be computed
+	void fail(RuntimeException cause) {
+		this.failure = cause;
+	}
+
+	public boolean isDone() {
+		return value != null || failure != null;
+	}
+
+	public BigInteger get() {
+		if(failure != null) throw new IllegalStateException("modexp failed", failure);
+		if(value == null) throw new IllegalStateException("modexp not computed yet");
+
+		return value;
+	}
+}
@@ -0,0 +1,122 @@
+package mpservice;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Simultaneous multi-exponentiation, computes Prod(base_i^pow_i) mod m
+ *
+ * Uses the bucket method (Pippenger): for each w-bit window of the exponents, bases are multiplied
+ * into the bucket for their digit, and the buckets are then combined with running products. Squarings
+ * are shared by all bases, so for n bases and l-bit exponents the cost is about l + (l / w) * (n + 2^(w+1))
+ * modular multiplications instead of ~1.2 * l * n.
+ */
+public final class MultiExp {
+
+	private MultiExp() {
+	}
+
+	public static BigInteger compute(ModPow2[] work, BigInteger mod) {
+		return compute(work, 0, work.length, mod);
+	}
+
+	/**
+	 * Computes the product for work[from, to)
+	 */
+	public static BigInteger compute(ModPow2[] work, int from, int to, BigInteger mod) {
+		BarrettReducer reducer = new BarrettReducer(mod);
+		int n = to - from;
+		if(n <= 0) return BigInteger.ONE.mod(mod);
+
+		BigInteger[] bases = new BigInteger[n];
+		BigInteger[] pows = new BigInteger[n];
+		int bits = 0;
+		for(int i = 0; i < n; i++) {
+			ModPow2 next = work[from + i];
+			if(next.pow().signum() < 0) throw new IllegalArgumentException("negative exponent");
+			bases[i] = next.base().mod(mod);
+			pows[i] = next.pow();
+			bits = Math.max(bits, pows[i].bitLength());
+		}
+		if(bits == 0) return BigInteger.ONE.mod(mod);
+
+		int w = window(n, bits);
+		int windows = (bits + w - 1) / w;
+		BigInteger[] buckets = new BigInteger[1 << w];
+		BigInteger acc = null;
+
+		for(int i = windows - 1; i >= 0; i--) {
+			if(acc != null) {
+				for(int s = 0; s < w; s++) {
+					acc = reducer.multiply(acc, acc);
+				}
+			}
+
+			Arrays.fill(buckets, null);
+			int offset = i * w;
+			for(int j = 0; j < n; j++) {
+				int d = digit(pows[j], offset, w);
+				if(d != 0) {
+					buckets[d] = (buckets[d] == null) ? bases[j] : reducer.multiply(buckets[d], bases[j]);
+				}
+			}
+
+			// sum = Prod(bucket_d^d)
+			BigInteger running = null;
+			BigInteger sum = null;
+			for(int d = buckets.length - 1; d > 0; d--) {
+				if(buckets[d] != null) {
+					running = (running == null) ? buckets[d] : reducer.multiply(running, buckets[d]);
+				}
+				if(running != null) {
+					sum = (sum == null) ? running : reducer.multiply(sum, running);
+				}
+			}
+
+			if(sum != null) {
+				acc = (acc == null) ? sum : reducer.multiply(acc, sum);
+			}
+		}
+
+		return (acc == null) ? BigInteger.ONE.mod(mod) : acc;
+	}
+
+	/**
+	 * Splits the work into chunks of the given size and computes them on the common fork join pool
+	 */
+	public static BigInteger computeParallel(ModPow2[] work, BigInteger mod, int chunkSize) {
+		int chunks = (work.length + chunkSize - 1) / chunkSize;
+		if(chunks <= 1) return compute(work, mod);
+
+		BarrettReducer reducer = new BarrettReducer(mod);
+		return IntStream.range(0, chunks).parallel()
+			.mapToObj(c -> compute(work, c * chunkSize, Math.min(work.length, (c + 1) * chunkSize), mod))
+			.reduce(BigInteger.ONE, reducer::multiply);
+	}
+
+	// the window minimizing (bits / w) * (n + 2^(w+1))
+	static int window(int n, int bits) {
+		int best = 1;
+		double bestCost = Double.MAX_VALUE;
+		for(int w = 1; w <= 16; w++) {
+			double cost = Math.ceil((double) bits / w) * (n + (double) (1 << (w + 1)));
+			if(cost < bestCost) {
+				bestCost = cost;
+				best = w;
+			}
+		}
+
+		return best;
+	}
+
+	// the w-bit digit of value starting at bit offset
+	static int digit(BigInteger value, int offset, int w) {
+		int digit = 0;
+		for(int b = w - 1; b >= 0; b--) {
+			digit = (digit << 1) | (value.testBit(offset + b) ? 1 : 0);
+		}
+
+		return digit;
+	}
+}
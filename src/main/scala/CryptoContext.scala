@@ -0,0 +1,150 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import java.math.BigInteger
+import scala.collection.concurrent.TrieMap
+import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.FiatShamirSigmaChallengeGenerator
+import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.interfaces.ChallengeGenerator
+import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.interfaces.SigmaChallengeGenerator
+import ch.bfh.unicrypt.crypto.proofsystem.classes.PermutationCommitmentProofSystem
+import ch.bfh.unicrypt.crypto.schemes.commitment.classes.PermutationCommitmentScheme
+import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme
+import ch.bfh.unicrypt.helper.math.Alphabet
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair
+import ch.bfh.unicrypt.math.algebra.concatenative.classes.StringMonoid
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import com.typesafe.config.ConfigFactory
+import models.CryptoSettings
+import election.ElectionState
+import utils.CiphertextCodec
+
+/**
+ * Crypto objects derived from an election's CryptoSettings
+ *
+ * The encryption scheme, spaces and challenge generators are built once per election instead of once per
+ * call, and the parsed public key gets a fixed-base table. Contexts are cached by election id (see below).
+ */
+class CryptoContext(val id: String, val settings: CryptoSettings) extends ProofSettings {
+  val group = settings.group
+  val generator = settings.generator
+  val elGamal = ElGamalEncryptionScheme.getInstance(generator)
+  val encryptionSpace = elGamal.getEncryptionSpace
+  val messageSpace = elGamal.getMessageSpace
+  val keyPairGenerator = elGamal.getKeyPairGenerator
+  val publicKeySpace = keyPairGenerator.getPublicKeySpace
+  val zModOrder = group.getZModOrder
+
+  private val challengeGenerators = TrieMap[String, SigmaChallengeGenerator]()
+  private val eValuesGenerators = TrieMap[Int, ChallengeGenerator]()
+  private val permutationCommitmentSchemes = TrieMap[Int, PermutationCommitmentScheme]()
+  private val publicKeys = TrieMap[String, Element[_]]()
+  // the decoded output of the last verified mix: (mix index, serialized votes, ciphertexts)
+  @volatile private var lastMix: Option[(Int, Seq[String], Seq[Pair])] = None
+
+  // fiat shamir challenge generator for the given prover
+  def challengeGenerator(proverId: String): SigmaChallengeGenerator = challengeGenerators.getOrElseUpdate(proverId, {
+    val otherInput = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
+    FiatShamirSigmaChallengeGenerator.getInstance(zModOrder, otherInput, convertMethod, hashMethod, converter)
+  })
+
+  // e-values challenge generator for the proof of shuffle of the given number of votes
+  def eValuesGenerator(voteCount: Int): ChallengeGenerator = eValuesGenerators.getOrElseUpdate(voteCount,
+    PermutationCommitmentProofSystem.createNonInteractiveEValuesGenerator(zModOrder, voteCount))
+
+  // derives voteCount independent generators, so it is worth keeping
+  def permutationCommitmentScheme(voteCount: Int): PermutationCommitmentScheme =
+    permutationCommitmentSchemes.getOrElseUpdate(voteCount, PermutationCommitmentScheme.getInstance(group, voteCount))
+
+  // parses the election public key once and registers it as a fixed base. Only the caller that adds the key
+  // registers it (getOrElseUpdate may evaluate twice), so release drops exactly one reference per key
+  def publicKey(publicKey: String): Element[_] = publicKeys.getOrElse(publicKey, {
+    val element = publicKeySpace.getElementFrom(publicKey)
+    publicKeys.putIfAbsent(publicKey, element).getOrElse {
+      GStarMod.registerFixedBase(element)
+      element
+    }
+  })
+
+  /**
+   * The ciphertexts output by the given mix, decoded once for the verifier of the next mix and the next mixer
+   *
+   * Only a verified mix is cached (see cacheMixOutput), and the cached entry is only used if its votes equal
+   * the requested ones, so a different election reusing the id cannot get them.
+   */
+  def mixOutput(index: Int, votes: Seq[String]): Seq[Pair] = {
+    lastMix.collect {
+      case (i, v, ciphertexts) if i == index && ((v eq votes) || v == votes) => ciphertexts
+    }.getOrElse(CiphertextCodec.decodeAll(encryptionSpace, votes))
+  }
+
+  // replaces the previous entry, only the last mix is needed
+  def cacheMixOutput(index: Int, votes: Seq[String], ciphertexts: Seq[Pair]) = {
+    lastMix = Some((index, votes, ciphertexts))
+  }
+
+  // releases this election's references on the fixed-base tables of its public keys, the tables stay while
+  // another context holds the same key. The generator's is shared with other elections
+  def release() = {
+    lastMix = None
+    publicKeys.values.foreach(GStarMod.unregisterFixedBase(_))
+  }
+
+  def matches(other: CryptoSettings) = (settings eq other) ||
+    (group.getModulus == other.group.getModulus && generator.convertToBigInteger == other.generator.convertToBigInteger)
+}
+
+/**
+ * Per election cache of crypto contexts, with least recently used eviction
+ */
+object CryptoContext {
+  val maxContexts = ConfigFactory.load().getInt("crypto-context-cache-size")
+
+  private val contexts = new java.util.LinkedHashMap[String, CryptoContext](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[String, CryptoContext]) = {
+      val evict = size > maxContexts
+      if(evict) eldest.getValue.release()
+      evict
+    }
+  }
+  // finding safe primes and checking them is slow, groups are shared by elections with the same parameters
+  private val groupsByBits = TrieMap[Int, GStarModSafePrime]()
+  private val groupsByModulus = TrieMap[BigInteger, GStarModSafePrime]()
+
+  def apply(state: ElectionState): CryptoContext = apply(state.id, state.cSettings)
+
+  def apply(id: String, settings: CryptoSettings): CryptoContext = contexts.synchronized {
+    Option(contexts.get(id)).filter(_.matches(settings)).getOrElse {
+      // a different election that reused the id (ids are temporary until the board assigns them)
+      Option(contexts.get(id)).foreach(_.release())
+      val context = new CryptoContext(id, settings)
+      contexts.put(id, context)
+      context
+    }
+  }
+
+  def remove(id: String) = contexts.synchronized {
+    Option(contexts.remove(id)).foreach(_.release())
+  }
+
+  def group(bits: Int): GStarModSafePrime = groupsByBits.getOrElseUpdate(bits, GStarModSafePrime.getFirstInstance(bits))
+
+  def group(modulus: BigInteger): GStarModSafePrime = groupsByModulus.getOrElseUpdate(modulus, GStarModSafePrime.getInstance(modulus))
+}
@@ -26,7 +26,7 @@ import akka.actor.ActorSystem
 import akka.stream.{ActorMaterializer, Materializer}
 import models.EncryptionKeyShareDTO
 import models.CryptoSettings
-import utils.Util
+import utils.{ Util, CiphertextCodec }
 
 /**
  * Minimal tests of crypto for key generation, shuffling and joint decryption
@@ -39,6 +39,7 @@ object CryptoTest extends App {
 
   val gen = grp.getDefaultGenerator()
   val Csettings = CryptoSettings(grp, gen)
+  val ctx = CryptoContext("crypto-test", Csettings)
 
   val shares = scala.collection.mutable.ArrayBuffer.empty[Element[_]]
   val privates = scala.collection.mutable.ArrayBuffer.empty[Element[_]]
@@ -54,14 +55,15 @@ object CryptoTest extends App {
     val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
     val keyPair = elGamal.getKeyPairGenerator().generateKeyPair()
     val privateKey = keyPair.getFirst()
-    val publicKey = keyPair.getSecond()
+    // registered as a fixed base by the context, as the mixer expects
+    val publicKey = ctx.publicKey(keyPair.getSecond().convertToString)
     val votes = Util.getRandomVotes(10, Csettings.generator, publicKey)
 
-    val shuffleResult = MX.shuffle(Util.tupleFromSeq(votes), publicKey, Csettings, "proverId")
-    val shuffled = shuffleResult.votes.map( v => Util.getE(elGamal.getEncryptionSpace, v) )
+    val shuffleResult = MX.shuffle(Util.tupleFromSeq(votes), publicKey, ctx, "proverId")
+    val shuffled = CiphertextCodec.decodeAll(elGamal.getEncryptionSpace, shuffleResult.votes)
 
     Verifier.verifyShuffle(Util.tupleFromSeq(votes), Util.tupleFromSeq(shuffled),
-      shuffleResult.shuffleProof, "proverId", publicKey, Csettings)
+      shuffleResult.shuffleProof.get, "proverId", publicKey, ctx)
 
     shuffled.foreach { v =>
       val decryption = elGamal.decrypt(privateKey, v)
@@ -73,9 +75,9 @@ object CryptoTest extends App {
     implicit val system = ActorSystem()
     implicit val executor = system.dispatchers.lookup("my-other-dispatcher")
     implicit val materializer = ActorMaterializer()
-    KM.createShare("1", Csettings) flatMap { case (share, key) => 
+    KM.createShare("1", ctx) flatMap { case (share, key) => 
       addShare(share, "1", Csettings, key)
-      KM.createShare("2", Csettings)
+      KM.createShare("2", ctx)
     } map { case (share2, key2) => 
       addShare(share2, "2", Csettings, key2)
       println(s"Shares $shares")
@@ -84,12 +86,12 @@ object CryptoTest extends App {
       val ciphertexts = Util.getRandomVotes(10, Csettings.generator, publicKey)
   
       // a^-x1
-      val elementsOne = KM.partialDecrypt(ciphertexts, privates(0), "0", Csettings)
-      var ok = Verifier.verifyPartialDecryption(elementsOne, ciphertexts, Csettings, "0", shares(0))
+      val elementsOne = KM.partialDecrypt(ciphertexts, privates(0), "0", ctx)
+      var ok = Verifier.verifyPartialDecryption(elementsOne, ciphertexts, ctx, "0", shares(0))
       if(!ok) throw new Exception()
       // a^-x2
-      val elementsTwo = KM.partialDecrypt(ciphertexts, privates(1), "1", Csettings)
-      ok = Verifier.verifyPartialDecryption(elementsTwo, ciphertexts, Csettings, "1", shares(1))
+      val elementsTwo = KM.partialDecrypt(ciphertexts, privates(1), "1", ctx)
+      ok = Verifier.verifyPartialDecryption(elementsTwo, ciphertexts, ctx, "1", shares(1))
       if(!ok) throw new Exception()
   
       println(s"partial decrypts one ****\n$elementsOne")
@@ -130,7 +132,7 @@ object CryptoTest extends App {
   }
 
   def addShare(encryptionKeyShare: EncryptionKeyShareDTO, proverId: String, CSettings: CryptoSettings, privateK: String) = {
-    val result = Verifier.verifyKeyShare(encryptionKeyShare, Csettings, proverId: String)
+    val result = Verifier.verifyKeyShare(encryptionKeyShare, ctx, proverId: String)
     if(result) {
       val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
       val keyPairGen: KeyPairGenerator = elGamal.getKeyPairGenerator()
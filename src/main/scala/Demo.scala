@@ -174,6 +174,8 @@ object ElectionTest extends App {
   // actually used in Util.getIndependentGenerators constructor
   val generatorsParallelLevel = config.getInt("generators-parallelism-level")
   println(s"* generators-parallelism-level: $generatorsParallelLevel")
+  val pipelinedMixing = config.getBoolean("pipelined-mixing")
+  println(s"* pipelined-mixing: $pipelinedMixing")
 
   val totalVotes = args.toList.lift(0).getOrElse("100").toInt
   implicit val system = ActorSystem()
@@ -288,8 +290,22 @@ object ElectionTest extends App {
     startMix flatMap { startMix => 
       val shuffle1 = m1.shuffleVotes(startMix, predata1, proof1)
       
+      if(pipelinedMixing) {
+        // the first mix is verified while the second mixer shuffles its output, a failed verification
+        // fails the second shuffle too
+        val mixOne = shuffle1 flatMap { shuffle =>
+          Election.addMix(startMix, shuffle, m1.id)
+        }
+        val shuffle2 = shuffle1 flatMap { shuffle =>
+          m2.shuffleVotes(startMix, shuffle, mixOne, predata2, proof2)
+        }
+        for {
+          mixOne <- mixOne
+          shuffle <- shuffle2
+        } yield Election.addMix(mixOne, shuffle, m2.id)
+      }
       // we compose futures, first mix then second mix
-      shuffle1 flatMap { shuffle =>
+      else shuffle1 flatMap { shuffle =>
         // the proof is verified and the shuffle is then added to the election, advancing its state
         Election.addMix(startMix, shuffle, m1.id)
       } flatMap { mixOne =>
@@ -664,7 +680,8 @@ object DecryptionTest extends App {
   val group = GStarModSafePrime.getFirstInstance(2048)
   val generator = group.getDefaultGenerator()
   val cSettings = CryptoSettings(group, generator)
-  val elGamal = ElGamalEncryptionScheme.getInstance(generator)
+  val ctx = CryptoContext("decryption-test", cSettings)
+  val elGamal = ctx.elGamal
 
   object d1 extends KeyMaker
   object d2 extends KeyMaker
@@ -674,11 +691,11 @@ object DecryptionTest extends App {
   
   var keyShare1Opt : Option[(EncryptionKeyShareDTO, String)] = None
 
-  val e1k = d1.createShare("d1", cSettings) map { case (e1,pk1) =>
+  val e1k = d1.createShare("d1", ctx) map { case (e1,pk1) =>
     keyShare1Opt = Some((e1,pk1))
     Util.getPublicKeyFromString(e1.keyShare, cSettings.generator)
   }
-  val e2k = d2.createShare("d2", cSettings) map { case (e2,pk2) =>
+  val e2k = d2.createShare("d2", ctx) map { case (e2,pk2) =>
     Util.getPublicKeyFromString(e2.keyShare, cSettings.generator)
   }
 
@@ -697,13 +714,13 @@ object DecryptionTest extends App {
         MPBridge.total = 0;
       
         MPBridge.y()
-        val decryption = d1.partialDecrypt(votes, pk1e, "d1", cSettings)
+        val decryption = d1.partialDecrypt(votes, pk1e, "d1", ctx)
         MPBridge.z()
       
         MPBridge.y()
         val share = elGamal.getMessageSpace.getElementFrom(e1.keyShare)
       
-        val ok = Verifier.verifyPartialDecryption(decryption, votes, cSettings, "d1", share)
+        val ok = Verifier.verifyPartialDecryption(decryption, votes, ctx, "d1", share)
         MPBridge.z()
       
         MPBridgeS.shutdown
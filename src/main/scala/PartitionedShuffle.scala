@@ -0,0 +1,68 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import com.typesafe.config.ConfigFactory
+
+/**
+ * Layout of a partitioned shuffle
+ *
+ * A single shuffle proof of N votes is one long sequential computation per mixer. A partitioned shuffle does
+ * several rounds, each of which splits its input into k batches that are shuffled and proven independently
+ * (and so in parallel). Batch b takes the votes at positions b, b + k, b + 2k.. of the round's input, and the
+ * round's output is the concatenation of the batch outputs. Taking every k-th vote of the previous output
+ * spreads each batch over all the batches of the next round.
+ *
+ * The overall permutation is the composition of the rounds, it is not uniform over all permutations of N
+ * votes as a single shuffle is. Any input can reach any output position after 2 rounds if every batch of a
+ * round gets votes from every batch of the previous one, which takes at least k * k votes.
+ */
+object PartitionedShuffle {
+  val config = ConfigFactory.load()
+  // number of batches, 1 disables partitioning
+  val batches = config.getInt("mixer.partitions")
+  val rounds = config.getInt("mixer.partition-rounds")
+  // fewer rounds leave each output in the batch of its input, verifiers reject them
+  val minRounds = 2
+
+  def isEnabled(voteCount: Int) = isValid(voteCount, batches, rounds)
+
+  // also checked by the verifier, batches and rounds are chosen by the prover
+  def isValid(voteCount: Int, batches: Int, rounds: Int) =
+    batches > 1 && rounds >= minRounds && voteCount.toLong >= batches.toLong * batches
+
+  // positions of the round input that make up each batch
+  def layout(voteCount: Int, batches: Int): IndexedSeq[IndexedSeq[Int]] = {
+    (0 until batches).map(b => (b until voteCount by batches).toIndexedSeq)
+  }
+
+  // the inputs of each batch
+  def split[T](input: IndexedSeq[T], batches: Int): IndexedSeq[IndexedSeq[T]] = {
+    layout(input.size, batches).map(_.map(input))
+  }
+
+  // the outputs of each batch, given the round output
+  def slices[T](output: IndexedSeq[T], batches: Int): IndexedSeq[IndexedSeq[T]] = {
+    val sizes = layout(output.size, batches).map(_.size)
+    val offsets = sizes.scanLeft(0)(_ + _)
+    sizes.indices.map(b => output.slice(offsets(b), offsets(b + 1)))
+  }
+
+  // each batch proof is bound to its position through the prover id of its challenges
+  def proverId(proverId: String, round: Int, batch: Int) = s"$proverId round $round batch $batch"
+}
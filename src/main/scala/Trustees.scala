@@ -19,6 +19,7 @@ package app
 
 import scala.collection.mutable.{ Map => MutableMap }
 
+import ch.bfh.unicrypt.crypto.mixer.abstracts.AbstractMixer
 import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.FiatShamirSigmaChallengeGenerator
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.interfaces.ChallengeGenerator
@@ -55,13 +56,16 @@ import akka.actor.ActorSystem
 import akka.stream.{ActorMaterializer, Materializer}
 import models._
 import election._
-import utils.Util
+import utils.{ Util, CiphertextCodec }
 import java.io._
 import com.github.nscala_time.time.Imports._
 
+// the offline phase of one shuffle (see Mixer.preShuffle), its re-encryption factors and shuffle proof
+// precomputation throw IllegalStateException if used for a second shuffle
 case class PreShuffleData(mixer: ReEncryptionMixer, psi: PermutationElement, elGamal: ElGamalEncryptionScheme,
   challengeGenerator: SigmaChallengeGenerator, ecg: ChallengeGenerator, permutationCommitmentRandomizations: Tuple,
-  permutationCommitment: Tuple)
+  permutationCommitment: Tuple, reEncryptions: AbstractMixer.ReEncryptionFactors,
+  shuffleProofSystem: ReEncryptionShuffleProofSystem, shuffleProofCommitment: ReEncryptionShuffleProofSystem.CommitmentPrecomputation)
 
 /**
  * Represents a key maker trustee
@@ -85,7 +89,7 @@ class KeyMakerTrustee(val id: String, privateShares: MutableMap[String, String]
   def createKeyShare(e: Election[_, Shares[_]]) : Future[EncryptionKeyShareDTO] = {
     println("KeyMaker creating share..")
     
-    createShare(id, e.state.cSettings) map { case (encryptionKeyShareDTO, privateKey)  =>
+    createShare(id, CryptoContext(e.state)) map { case (encryptionKeyShareDTO, privateKey)  =>
       privateShares += (e.state.id -> privateKey)
       savePrivateKey(privateKey, e.state.uid)
       encryptionKeyShareDTO
@@ -97,11 +101,11 @@ class KeyMakerTrustee(val id: String, privateShares: MutableMap[String, String]
   }
 
   def partialDecryption(e: Election[_, Decryptions[_]]) = {
-    val elGamal = ElGamalEncryptionScheme.getInstance(e.state.cSettings.generator)
-    val votes = e.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v).asInstanceOf[Pair]).seq
-    val secretKey = e.state.cSettings.group.getZModOrder().getElementFrom(privateShares(e.state.id))
+    val ctx = CryptoContext(e.state)
+    val votes = e.state.votes.elements(ctx.encryptionSpace)
+    val secretKey = ctx.zModOrder.getElementFrom(privateShares(e.state.id))
 
-    partialDecrypt(votes, secretKey, id, e.state.cSettings)
+    partialDecrypt(votes, secretKey, id, ctx)
   }
 }
 
@@ -114,49 +118,78 @@ class MixerTrustee(val id: String) extends Mixer {
   def shuffleVotes(e: Election[_, Mixing[_]]) = {
     println("Mixer shuffle..")
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(e.state.cSettings.generator)
-    val keyPairGen = elGamal.getKeyPairGenerator()
-    val publicKey = keyPairGen.getPublicKeySpace().getElementFrom(e.state.publicKey)
+    val ctx = CryptoContext(e.state)
+    val publicKey = ctx.publicKey(e.state.publicKey)
 
     println("Convert votes..")
 
     MPBridge.a()
     val votes = e.state match {
-      case s: Mixing[_0] => e.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
-      case _ => e.state.mixes.toList.last.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
+      case s: Mixing[_0] => e.state.votes.elements(ctx.encryptionSpace)
+      case _ => ctx.mixOutput(e.state.mixes.toList.size - 1, e.state.mixes.toList.last.votes)
     }
     MPBridge.b()
 
     println("Mixer creating shuffle..")
 
-    shuffle(Util.tupleFromSeq(votes), publicKey, e.state.cSettings, id)
+    if(PartitionedShuffle.isEnabled(votes.size)) {
+      shufflePartitioned(votes, publicKey, ctx, id)
+    }
+    else {
+      shuffle(Util.tupleFromSeq(votes), publicKey, ctx, id)
+    }
   }
 
   def preShuffleVotes(e: Election[_, VotesStopped]) = {
-    val elGamal = ElGamalEncryptionScheme.getInstance(e.state.cSettings.generator)
-    val keyPairGen = elGamal.getKeyPairGenerator()
-    val publicKey = keyPairGen.getPublicKeySpace().getElementFrom(e.state.publicKey)
+    val ctx = CryptoContext(e.state)
+    val publicKey = ctx.publicKey(e.state.publicKey)
 
-    preShuffle(e.state.votes.size, publicKey, e.state.cSettings, id)
+    preShuffle(e.state.votes.size, publicKey, ctx, id)
   }
 
   def shuffleVotes(e: Election[_, Mixing[_]], preData: PreShuffleData, pdtoFuture: Future[PermutationProofDTO]) = {
     println("Mixer..")
-    val elGamal = ElGamalEncryptionScheme.getInstance(e.state.cSettings.generator)
-    val keyPairGen = elGamal.getKeyPairGenerator()
-    val publicKey = keyPairGen.getPublicKeySpace().getElementFrom(e.state.publicKey)
+    val ctx = CryptoContext(e.state)
+    val publicKey = ctx.publicKey(e.state.publicKey)
     println("Convert votes..")
 
     MPBridge.a()
     val votes = e.state match {
-      case s: Mixing[_0] => e.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
-      case _ => e.state.mixes.toList.last.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
+      case s: Mixing[_0] => e.state.votes.elements(ctx.encryptionSpace)
+      case _ => ctx.mixOutput(e.state.mixes.toList.size - 1, e.state.mixes.toList.last.votes)
     }
     MPBridge.b()
 
     println("Mixer creating shuffle..")
 
-    shuffle(Util.tupleFromSeq(votes), publicKey, e.state.cSettings, id, preData, pdtoFuture)
+    shuffle(Util.tupleFromSeq(votes), publicKey, ctx, id, preData, pdtoFuture)
+  }
+
+  /**
+   * Pipelined mixing: shuffles the output of a mix that has been posted to the election (e, before the mix is
+   * added) but is still being verified, instead of waiting for Election.addMix to complete
+   *
+   * previousVerified is the addMix of the previous mix. If it has already failed nothing is computed, and the
+   * result only completes once it succeeds, so a shuffle of an invalid mix is never posted.
+   */
+  def shuffleVotes(e: Election[_, Mixing[_]], previous: ShuffleResultDTO, previousVerified: Future[_],
+    preData: PreShuffleData, pdtoFuture: Future[PermutationProofDTO]): Future[ShuffleResultDTO] = {
+
+    previousVerified.value.collect { case scala.util.Failure(err) => Future.failed(err) }.getOrElse {
+      println("Mixer (pipelined)..")
+      val ctx = CryptoContext(e.state)
+      val publicKey = ctx.publicKey(e.state.publicKey)
+      println("Convert votes..")
+
+      MPBridge.a()
+      val votes = CiphertextCodec.decodeAll(ctx.encryptionSpace, previous.votes)
+      MPBridge.b()
+
+      println("Mixer creating shuffle..")
+
+      val result = shuffle(Util.tupleFromSeq(votes), publicKey, ctx, id, preData, pdtoFuture)
+      previousVerified.flatMap(_ => result)
+    }
   }
 }
 
@@ -171,24 +204,19 @@ trait KeyMaker extends ProofSettings {
   implicit val executor = system.dispatchers.lookup("my-other-dispatcher")
   implicit val materializer = ActorMaterializer()
   
-  def createShare(proverId: String, Csettings: CryptoSettings) : Future[(EncryptionKeyShareDTO, String)]= {
+  def createShare(proverId: String, ctx: CryptoContext) : Future[(EncryptionKeyShareDTO, String)]= {
     Future {
-      val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
-  
-      val kpg = elGamal.getKeyPairGenerator()
-      val keyPair = kpg.generateKeyPair()
+      val kpg = ctx.keyPairGenerator
+      val keyPair = MPBridgeS.secret { kpg.generateKeyPair() }
       val privateKey = keyPair.getFirst()
       val publicKey = keyPair.getSecond()
   
       val function = kpg.getPublicKeyGenerationFunction()
-      val otherInput: StringElement = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-  
-      val challengeGenerator: SigmaChallengeGenerator  = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+      val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
   
       val pg: PlainPreimageProofSystem = PlainPreimageProofSystem.getInstance(challengeGenerator, function)
   
-      val proof: Triple = blocking { pg.generate(privateKey, publicKey) }
+      val proof: Triple = blocking { MPBridgeS.secret { pg.generate(privateKey, publicKey) } }
   
       val success = pg.verify(proof, publicKey)
   
@@ -205,14 +233,14 @@ trait KeyMaker extends ProofSettings {
     }
   }
 
-  def partialDecrypt(votes: Seq[Tuple], privateKey: Element[_], proverId: String, Csettings: CryptoSettings) = {
+  def partialDecrypt(votes: Seq[Tuple], privateKey: Element[_], proverId: String, ctx: CryptoContext) = {
 
-    val encryptionGenerator = Csettings.generator
+    val encryptionGenerator = ctx.generator
 
-    val secretKey = Csettings.group.getZModOrder().getElementFrom(privateKey.convertToBigInteger)
+    val secretKey = ctx.zModOrder.getElementFrom(privateKey.convertToBigInteger)
     println(s"PartialDecrypt: keymaker using secretKey $secretKey")
     val decryptionKey = secretKey.invert()
-    val publicKey = encryptionGenerator.selfApply(secretKey)
+    val publicKey = MPBridgeS.secret { encryptionGenerator.selfApply(secretKey) }
 
     val generators = votes.par.map { v =>
       val element = v.getFirst()
@@ -223,44 +251,46 @@ trait KeyMaker extends ProofSettings {
 
       GeneratorFunction.getInstance(element)
     }.seq
-    val lists = MPBridgeS.ex(generators.map{ generator =>
-      val partialDecryption = generator.apply(decryptionKey).asInstanceOf[GStarModElement]
-      (partialDecryption, generator)
-    }, "2").unzip
+    // the exponent is the (inverted) private key share
+    val lists = MPBridgeS.secret {
+      MPBridgeS.exPar(generators, "2") { generator =>
+        val partialDecryption = generator.apply(decryptionKey).asInstanceOf[GStarModElement]
+        (partialDecryption, generator)
+      }
+    }.unzip
 
-    val proofDTO = createProof(proverId, secretKey, publicKey, lists._1, lists._2, Csettings)
+    val proofDTO = createProof(proverId, secretKey, publicKey, lists._1, lists._2, ctx)
 
     PartialDecryptionDTO(lists._1.par.map(_.convertToString).seq, proofDTO)
   }
 
   private def createProof(proverId: String, secretKey: Element[_],
-      publicKey: Element[_], partialDecryptions: Seq[Element[_]], generatorFunctions: Seq[Function], Csettings: CryptoSettings) = {
+      publicKey: Element[_], partialDecryptions: Seq[Element[_]], generatorFunctions: Seq[Function], ctx: CryptoContext) = {
 
     MPBridge.a()
-    val encryptionGenerator = Csettings.generator
+    val encryptionGenerator = ctx.generator
 
     // Create proof functions
     val f1: Function = GeneratorFunction.getInstance(encryptionGenerator)
 
     val f2: Function = CompositeFunction.getInstance(
-        InvertFunction.getInstance(Csettings.group.getZModOrder()),
-        MultiIdentityFunction.getInstance(Csettings.group.getZModOrder(), generatorFunctions.length),
+        InvertFunction.getInstance(ctx.zModOrder),
+        MultiIdentityFunction.getInstance(ctx.zModOrder, generatorFunctions.length),
         ProductFunction.getInstance(generatorFunctions :_*))
 
     // Private and public input and prover id
     val privateInput = secretKey
     val publicInput: Pair = Pair.getInstance(publicKey, Tuple.getInstance(partialDecryptions:_*))
-    val otherInput = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
 
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
 
 
     val proofSystem: EqualityPreimageProofSystem = EqualityPreimageProofSystem.getInstance(challengeGenerator, f1, f2)
     MPBridge.b()
 
     // Generate and verify proof
-    val proof: Triple = proofSystem.generate(privateInput, publicInput)
+    // the commitment randomness would reveal the private key share
+    val proof: Triple = MPBridgeS.secret { proofSystem.generate(privateInput, publicInput) }
 
     //
     // Not doing self verification, enough to do it at the BB
@@ -284,33 +314,32 @@ trait Mixer extends ProofSettings {
   implicit val materializer = ActorMaterializer()
 
   // corresponds to the offline phase of the proof of shuffle (permutation for known number of votes)
-  def preShuffle(voteCount: Int, publicKey: Element[_], Csettings: CryptoSettings, proverId: String) = {
+  // publicKey comes from ctx.publicKey, which registers its fixed-base table and releases it with the context
+  def preShuffle(voteCount: Int, publicKey: Element[_], ctx: CryptoContext, proverId: String) = {
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val elGamal = ctx.elGamal
 
     val mixer: ReEncryptionMixer = ReEncryptionMixer.getInstance(elGamal, publicKey, voteCount)
     val psi: PermutationElement = mixer.getPermutationGroup().getRandomElement()
 
-    val pcs: PermutationCommitmentScheme = PermutationCommitmentScheme.getInstance(Csettings.group, voteCount)
+    val pcs: PermutationCommitmentScheme = ctx.permutationCommitmentScheme(voteCount)
     val permutationCommitmentRandomizations: Tuple = pcs.getRandomizationSpace().getRandomElement()
 
-    val permutationCommitment: Tuple = pcs.commit(psi, permutationCommitmentRandomizations)
+    // the randomizations hide the permutation
+    val permutationCommitment: Tuple = MPBridgeS.secret { pcs.commit(psi, permutationCommitmentRandomizations) }
 
     println("Mixer: generators..")
 
     // Create sigma challenge generator
-    val otherInput: StringElement = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
 
     // Create e-values challenge generator
-    val ecg: ChallengeGenerator = PermutationCommitmentProofSystem.createNonInteractiveEValuesGenerator(
-        Csettings.group.getZModOrder(), voteCount)
+    val ecg: ChallengeGenerator = ctx.eValuesGenerator(voteCount)
 
     println("Mixer: permutation proof..")
 
     val pcps: PermutationCommitmentProofSystem = PermutationCommitmentProofSystem.getInstance(challengeGenerator, ecg,
-        Csettings.group, voteCount)
+        ctx.group, voteCount)
 
     val privateInputPermutation: Pair = Pair.getInstance(psi, permutationCommitmentRandomizations)
     val publicInputPermutation = permutationCommitment
@@ -318,8 +347,9 @@ trait Mixer extends ProofSettings {
     // Create psi commitment proof system
     println("Mixer: permutation proof, generating..")
 
+    // the proof randomness and its commitment chain are secret, the flag is per thread so it is set inside the future
     val permutationProofFuture = Future {
-      pcps.generate(privateInputPermutation, publicInputPermutation)
+      MPBridgeS.secret { pcps.generate(privateInputPermutation, publicInputPermutation) }
     }.map { permutationProof =>
 
       val bridgingCommitments = pcps.getBridingCommitment(permutationProof).asInstanceOf[Tuple]
@@ -333,27 +363,38 @@ trait Mixer extends ProofSettings {
       permutationProofDTO
     }
 
-    val preShuffleData = PreShuffleData(mixer, psi, elGamal, challengeGenerator, ecg, permutationCommitmentRandomizations, permutationCommitment)
+    // the randomizations and their g^r, y^r only need the public key, the online shuffle is then multiplications
+    println("Mixer: re-encryption factors..")
+
+    val reEncryptions = mixer.precomputeReEncryptions()
+
+    // likewise the parts of the shuffle proof commitment that do not depend on the ciphertexts
+    println("Mixer: shuffle proof precomputation..")
+
+    val spg: ReEncryptionShuffleProofSystem = ReEncryptionShuffleProofSystem.getInstance(challengeGenerator, ecg, voteCount, elGamal, publicKey)
+    val shuffleProofCommitment = spg.precomputeCommitment()
+
+    val preShuffleData = PreShuffleData(mixer, psi, elGamal, challengeGenerator, ecg, permutationCommitmentRandomizations,
+      permutationCommitment, reEncryptions, spg, shuffleProofCommitment)
 
     (preShuffleData, permutationProofFuture)
   }
 
-  def shuffle(ciphertexts: Tuple, publicKey: Element[_], Csettings: CryptoSettings, proverId: String, pre: PreShuffleData, pdtoFuture: Future[PermutationProofDTO]) = {
+  def shuffle(ciphertexts: Tuple, publicKey: Element[_], ctx: CryptoContext, proverId: String, pre: PreShuffleData, pdtoFuture: Future[PermutationProofDTO]) = {
 
-    println("Mixer: randomizations..")
-
-    val rs: Tuple = pre.mixer.generateRandomizations()
+    // precomputed in preShuffle
+    val rs: Tuple = pre.reEncryptions.getRandomizations
 
     println("Mixer: shuffle..")
 
     // Perfom shuffle
-    val shuffledVs: Tuple = pre.mixer.shuffle(ciphertexts, pre.psi, rs)
+    val shuffledVs: Tuple = pre.mixer.shuffle(ciphertexts, pre.psi, pre.reEncryptions)
 
     println("Mixer: shuffle proof..")
     // 2. Shuffle Proof
     //------------------
-    // Create shuffle proof system
-    val spg: ReEncryptionShuffleProofSystem = ReEncryptionShuffleProofSystem.getInstance(pre.challengeGenerator, pre.ecg, ciphertexts.getArity(), pre.elGamal, publicKey)
+    // Shuffle proof system, created in preShuffle
+    val spg: ReEncryptionShuffleProofSystem = pre.shuffleProofSystem
 
     // Proof and verify
     val privateInputShuffle: Tuple = Tuple.getInstance(pre.psi, pre.permutationCommitmentRandomizations, rs)
@@ -361,8 +402,8 @@ trait Mixer extends ProofSettings {
 
     println("Mixer: shuffle proof, generating..")
 
-    // Create shuffle proof
-    val mixProof: Tuple = spg.generate(privateInputShuffle, publicInputShuffle)
+    // Create shuffle proof, only the ciphertext dependent part of the commitment is left
+    val mixProof: Tuple = MPBridgeS.secret { spg.generate(privateInputShuffle, publicInputShuffle, pre.shuffleProofCommitment) }
     val eValues2 = spg.getEValues(mixProof).asInstanceOf[Tuple]
 
     // FIXME conversion bug code
@@ -398,37 +439,70 @@ trait Mixer extends ProofSettings {
       */
 
 
-      val votesString: Seq[String] = Util.stringsFromTuple(shuffledVs)
+      val votesString: Seq[String] = CiphertextCodec.encodeAll(shuffledVs)
+
+      ShuffleResultDTO(Some(shuffleProofDTO), votesString)
+    }
+  }
+
+  /**
+   * Shuffles in rounds of independent batches (see PartitionedShuffle), the batches of a round are shuffled
+   * and proven in parallel, each with the proof of shuffle below
+   */
+  def shufflePartitioned(ciphertexts: Seq[Pair], publicKey: Element[_], ctx: CryptoContext, proverId: String,
+    batches: Int = PartitionedShuffle.batches, rounds: Int = PartitionedShuffle.rounds): ShuffleResultDTO = {
+
+    var input = ciphertexts.toIndexedSeq
+    var votes = Seq[String]()
+    val proofs = scala.collection.mutable.ArrayBuffer[Seq[ShuffleProofDTO]]()
+    val intermediateVotes = scala.collection.mutable.ArrayBuffer[Seq[String]]()
+
+    for(round <- 0 until rounds) {
+      println(s"Mixer: partitioned shuffle, round $round of $rounds, $batches batches..")
 
-      ShuffleResultDTO(shuffleProofDTO, votesString)
+      if(round > 0) {
+        intermediateVotes += votes
+        input = votes.par.map(CiphertextCodec.decode(ctx.encryptionSpace, _)).seq.toIndexedSeq
+      }
+      val results = PartitionedShuffle.split(input, batches).zipWithIndex.map { case (batch, b) =>
+        Future {
+          // the batch proofs wait on their own permutation proofs
+          blocking {
+            shuffle(Util.tupleFromSeq(batch), publicKey, ctx, PartitionedShuffle.proverId(proverId, round, b))
+          }
+        }
+      }
+      val shuffled = Await.result(Future.sequence(results), scala.concurrent.duration.Duration.Inf)
+      proofs += shuffled.map(_.shuffleProof.get)
+      votes = shuffled.flatMap(_.votes)
     }
+
+    ShuffleResultDTO(None, votes, Some(PartitionedShuffleDTO(batches, proofs.toList, intermediateVotes.toList)))
   }
 
-  def shuffle(ciphertexts: Tuple, publicKey: Element[_], Csettings: CryptoSettings, proverId: String) = {
+  def shuffle(ciphertexts: Tuple, publicKey: Element[_], ctx: CryptoContext, proverId: String) = {
     import scala.collection.JavaConversions._
-    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val elGamal = ctx.elGamal
 
     val mixer: ReEncryptionMixer = ReEncryptionMixer.getInstance(elGamal, publicKey, ciphertexts.getArity())
     val psi: PermutationElement = mixer.getPermutationGroup().getRandomElement()
 
-    val pcs: PermutationCommitmentScheme = PermutationCommitmentScheme.getInstance(Csettings.group, ciphertexts.getArity())
+    val pcs: PermutationCommitmentScheme = ctx.permutationCommitmentScheme(ciphertexts.getArity())
     val permutationCommitmentRandomizations: Tuple = pcs.getRandomizationSpace().getRandomElement()
 
-    val permutationCommitment: Tuple = pcs.commit(psi, permutationCommitmentRandomizations)
+    // the randomizations hide the permutation
+    val permutationCommitment: Tuple = MPBridgeS.secret { pcs.commit(psi, permutationCommitmentRandomizations) }
 
     println("Mixer: generators..")
 
     // Create sigma challenge generator
-    val otherInput: StringElement = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
 
     // Create e-values challenge generator
-    val ecg: ChallengeGenerator = PermutationCommitmentProofSystem.createNonInteractiveEValuesGenerator(
-        Csettings.group.getZModOrder(), ciphertexts.getArity())
+    val ecg: ChallengeGenerator = ctx.eValuesGenerator(ciphertexts.getArity())
 
     val pcps: PermutationCommitmentProofSystem = PermutationCommitmentProofSystem.getInstance(challengeGenerator, ecg,
-        Csettings.group, ciphertexts.getArity())
+        ctx.group, ciphertexts.getArity())
 
     // Create psi commitment proof
     val privateInputPermutation: Pair = Pair.getInstance(psi, permutationCommitmentRandomizations)
@@ -437,8 +511,9 @@ trait Mixer extends ProofSettings {
     // Create psi commitment proof system
     println("Mixer: permutation proof, generating..")
 
+    // the proof randomness and its commitment chain are secret, the flag is per thread so it is set inside the future
     val permutationProofFuture = Future {
-      pcps.generate(privateInputPermutation, publicInputPermutation)
+      MPBridgeS.secret { pcps.generate(privateInputPermutation, publicInputPermutation) }
     }.map { permutationProof =>
 
       val bridgingCommitments = pcps.getBridingCommitment(permutationProof).asInstanceOf[Tuple].toList
@@ -474,7 +549,7 @@ trait Mixer extends ProofSettings {
     println("Mixer: shuffle proof, generating..")
 
     // Create shuffle proof
-    val mixProof: Tuple = spg.generate(privateInputShuffle, publicInputShuffle)
+    val mixProof: Tuple = MPBridgeS.secret { spg.generate(privateInputShuffle, publicInputShuffle) }
     val eValues2 = spg.getEValues(mixProof).asInstanceOf[Tuple]
 
     // FIXME whether or not using parallel collection on eValues2.map here is good
@@ -505,8 +580,8 @@ trait Mixer extends ProofSettings {
         if(!(v1 && v2 && v3)) throw new Exception();
     */
 
-    val votesString: Seq[String] = shuffledVs.par.map( x => x.convertToString ).seq.toList
+    val votesString: Seq[String] = CiphertextCodec.encodeAll(shuffledVs)
 
-    ShuffleResultDTO(shuffleProofDTO, votesString)
+    ShuffleResultDTO(Some(shuffleProofDTO), votesString)
   }
 }
\ No newline at end of file
@@ -17,8 +17,10 @@
 
 package app
 
+import java.math.BigInteger
 import java.nio.ByteOrder
 import java.nio.charset.Charset
+import java.security.SecureRandom
 
 import ch.bfh.unicrypt.crypto.keygenerator.interfaces.KeyPairGenerator
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.FiatShamirSigmaChallengeGenerator
@@ -52,12 +54,18 @@ import ch.bfh.unicrypt.math.function.interfaces.Function
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractSet
 import mpservice.MPBridgeS
 import mpservice.MPBridge
+import mpservice.ModPow2
+import com.typesafe.config.ConfigFactory
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+import scala.concurrent.ExecutionContext.Implicits.global
 
 import models.ShuffleProofDTO
+import models.PartitionedShuffleDTO
 import models.PartialDecryptionDTO
 import models.EncryptionKeyShareDTO
 import models.CryptoSettings
-import utils.Util
+import utils.{ Util, CiphertextCodec }
 
 /**
  * Proof settings common for proof generators and verifiers
@@ -80,18 +88,21 @@ trait ProofSettings {
  */
 object Verifier extends ProofSettings {
 
-  def verifyKeyShare(share: EncryptionKeyShareDTO, Csettings: CryptoSettings, proverId: String) = {
+  val config = ConfigFactory.load()
+  // verify partial decryption proofs with a single batched equation instead of one per vote
+  val batchPartialDecryptions = config.getBoolean("verifier.batch-partial-decryptions")
+  // bit length of the random batching exponents, a bad proof passes with probability 2^-batchSecurity
+  val batchSecurity = config.getInt("verifier.batch-security-parameter")
+  val random = new SecureRandom()
+
+  def verifyKeyShare(share: EncryptionKeyShareDTO, ctx: CryptoContext, proverId: String) = {
     println("Verifier: verifyKeyShare......")
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
-    val keyPairGen: KeyPairGenerator = elGamal.getKeyPairGenerator();
-    val publicKey = keyPairGen.getPublicKeySpace().getElementFrom(share.keyShare)
+    val keyPairGen: KeyPairGenerator = ctx.keyPairGenerator
+    val publicKey = ctx.publicKeySpace.getElementFrom(share.keyShare)
     val proofFunction = keyPairGen.getPublicKeyGenerationFunction()
 
-    val otherInput: StringElement = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
 
     val pg: PlainPreimageProofSystem = PlainPreimageProofSystem.getInstance(challengeGenerator, proofFunction)
 
@@ -107,9 +118,10 @@ object Verifier extends ProofSettings {
     result
   }
 
-  def verifyPartialDecryption(pd: PartialDecryptionDTO, votes: Seq[Tuple], Csettings: CryptoSettings, proverId: String, publicKey: Element[_]) = {
+  def verifyPartialDecryption(pd: PartialDecryptionDTO, votes: Seq[Tuple], ctx: CryptoContext, proverId: String, publicKey: Element[_],
+    batched: Boolean = batchPartialDecryptions) = {
 
-    val encryptionGenerator = Csettings.generator
+    val encryptionGenerator = ctx.generator
     val generatorFunctions = votes.par.map { x: Tuple =>
       GeneratorFunction.getInstance(x.getFirst)
     }.seq
@@ -117,52 +129,101 @@ object Verifier extends ProofSettings {
     // Create proof functions
     val f1: Function = GeneratorFunction.getInstance(encryptionGenerator)
     val f2: Function = CompositeFunction.getInstance(
-        InvertFunction.getInstance(Csettings.group.getZModOrder()),
-        MultiIdentityFunction.getInstance(Csettings.group.getZModOrder(), generatorFunctions.length),
+        InvertFunction.getInstance(ctx.zModOrder),
+        MultiIdentityFunction.getInstance(ctx.zModOrder, generatorFunctions.length),
         ProductFunction.getInstance(generatorFunctions :_*))
 
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
+    val proofSystem: EqualityPreimageProofSystem = EqualityPreimageProofSystem.getInstance(challengeGenerator, f1, f2)
+
+    // the two membership check batches are independent, keep both in flight
     // FIXME use Util.getE
-    val pdElements = MPBridgeS.ex(pd.partialDecryptions.map(Csettings.group.asInstanceOf[AbstractSet[_,_]].getElementFrom(_)), "1")
+    val pdElementsFuture = MPBridgeS.exAsync(pd.partialDecryptions.map(ctx.group.asInstanceOf[AbstractSet[_,_]].getElementFrom(_)), "1")
+    val commitmentFuture = MPBridgeS.exAsync(proofSystem.getCommitmentSpace().getElementFrom(pd.proofDTO.commitment), "1")
+    val pdElements = Await.result(pdElementsFuture, Duration.Inf)
+    val commitment = Await.result(commitmentFuture, Duration.Inf)
 
     val publicInput: Pair = Pair.getInstance(publicKey, Tuple.getInstance(pdElements:_*))
-    val otherInput = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
-    val proofSystem: EqualityPreimageProofSystem = EqualityPreimageProofSystem.getInstance(challengeGenerator, f1, f2)
-
-    val commitment = MPBridgeS.ex(proofSystem.getCommitmentSpace().getElementFrom(pd.proofDTO.commitment), "1")
     val challenge = proofSystem.getChallengeSpace().getElementFrom(pd.proofDTO.challenge)
     val response = proofSystem.getResponseSpace().getElementFrom(pd.proofDTO.response)
 
     val proof: Triple = Triple.getInstance(commitment, challenge, response)
-    val result = proofSystem.verify(proof, publicInput)
+    val result = if(batched) {
+      verifyPartialDecryptionBatched(proofSystem, proof, publicInput, votes, ctx)
+    } else {
+      proofSystem.verify(proof, publicInput)
+    }
 
     println(s"Verifier: verifyPartialDecryptions $result")
 
     result
   }
 
+  /**
+   * Batched verification of the partial decryption proof
+   *
+   * The proof checks g^s = t_0 * y^c and a_i^-s = t_i * d_i^c for every vote i, where a_i is the first
+   * component of the vote, d_i the partial decryption and (t_0, t_i) the commitment. The N per vote
+   * equations are combined with random exponents r_i into
+   *
+   *   Prod(a_i^r_i)^-s = Prod(t_i^r_i) * Prod(d_i^r_i)^c
+   *
+   * so that the bulk of the work is three multi-exponentiations with short exponents. This is only
+   * sound if all elements belong to the prime order subgroup, which the proof space checks.
+   */
+  private def verifyPartialDecryptionBatched(proofSystem: EqualityPreimageProofSystem, proof: Triple, publicInput: Pair,
+    votes: Seq[Tuple], ctx: CryptoContext): Boolean = {
+
+    // ProductSet also has contains(Element...), which scala cannot tell apart from contains(Element)
+    if(!proofSystem.getProofSpace.asInstanceOf[AbstractSet[_, _]].contains(proof) ||
+      !proofSystem.getPublicInputSpace.asInstanceOf[AbstractSet[_, _]].contains(publicInput)) {
+      throw new IllegalArgumentException()
+    }
+    val modulus = ctx.group.getModulus
+    val order = ctx.group.getOrder
+    def value(e: Element[_]) = e.getValue.asInstanceOf[BigInteger]
+
+    val commitment = proof.getFirst.asInstanceOf[Pair]
+    val s = value(proof.getThird)
+    val c = value(proofSystem.getChallengeGenerator.generate(publicInput, commitment))
+
+    // public key equation
+    val generatorOk = MPBridge.modPowLocal(value(ctx.generator), s, modulus, false) ==
+      value(commitment.getFirst).multiply(MPBridge.modPowLocal(value(publicInput.getFirst), c, modulus, false)).mod(modulus)
+
+    // combined vote equations
+    val commitments = commitment.getSecond.asInstanceOf[Tuple]
+    val decryptions = publicInput.getSecond.asInstanceOf[Tuple]
+    val r = Array.fill(votes.length)(new BigInteger(batchSecurity, random))
+
+    val a = MPBridge.multiExp(votes.zipWithIndex.map { case (v, i) => ModPow2(value(v.getFirst), r(i)) }.toArray, modulus)
+    val t = MPBridge.multiExp(r.indices.map(i => ModPow2(value(commitments.getAt(i)), r(i))).toArray, modulus)
+    val d = MPBridge.multiExp(r.indices.map(i => ModPow2(value(decryptions.getAt(i)), r(i))).toArray, modulus)
+
+    val left = a.modPow(order.subtract(s).mod(order), modulus)
+    val right = t.multiply(d.modPow(c, modulus)).mod(modulus)
+
+    generatorOk && left == right
+  }
+
   def verifyShuffle(votes: Tuple, shuffledVotes: Tuple, shuffleProof: ShuffleProofDTO,
-    proverId: String, publicKey: Element[_], Csettings: CryptoSettings) = {
+    proverId: String, publicKey: Element[_], ctx: CryptoContext) = {
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val elGamal = ctx.elGamal
 
-    val otherInput: StringElement = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
-    val challengeGenerator: SigmaChallengeGenerator = FiatShamirSigmaChallengeGenerator.getInstance(
-        Csettings.group.getZModOrder(), otherInput, convertMethod, hashMethod, converter)
+    val challengeGenerator: SigmaChallengeGenerator = ctx.challengeGenerator(proverId)
 
     println("Getting proof systems..")
 
     // Create e-values challenge generator
-    val ecg: ChallengeGenerator = PermutationCommitmentProofSystem.createNonInteractiveEValuesGenerator(
-        Csettings.group.getZModOrder(), votes.getArity())
+    val ecg: ChallengeGenerator = ctx.eValuesGenerator(votes.getArity())
 
     val pcps: PermutationCommitmentProofSystem = PermutationCommitmentProofSystem.getInstance(challengeGenerator, ecg,
-      Csettings.group, votes.getArity())
+      ctx.group, votes.getArity())
 
     val spg: ReEncryptionShuffleProofSystem = ReEncryptionShuffleProofSystem.getInstance(challengeGenerator, ecg, votes.getArity(), elGamal, publicKey)
 
-    val pcs: PermutationCommitmentScheme = PermutationCommitmentScheme.getInstance(Csettings.group, votes.getArity())
+    val pcs: PermutationCommitmentScheme = ctx.permutationCommitmentScheme(votes.getArity())
 
     // val permutationCommitment = MPBridgeS.ex(pcs.getCommitmentSpace().getElementFromString(shuffleProof.permutationCommitment), "1")
     val permutationCommitment = Util.getE(pcs.getCommitmentSpace(), shuffleProof.permutationCommitment)
@@ -193,23 +254,23 @@ object Verifier extends ProofSettings {
     println("Converting bridging commitments..")
 
     /*val bridgingCommitments = MPBridgeS.ex(permutationProofDTO.bridgingCommitments.map { x =>
-      Csettings.group.getElementFromString(x)
+      ctx.group.getElementFromString(x)
     }, "1")*/
 
     // bridging commitments: GStarmod
     val bridgingCommitments = permutationProofDTO.bridgingCommitments.par.map { x =>
-      Util.getE(Csettings.group, x)
+      Util.getE(ctx.group, x)
     }.seq
 
     println("Converting permutation e values..")
 
     // evalues: ZMod
     val eValues = permutationProofDTO.eValues.par.map { x =>
-      Csettings.group.getZModOrder.getElementFrom(x)
+      ctx.zModOrder.getElementFrom(x)
     }.seq
     println("Converting shuffle e values..")
     val eValues2 = mixProofDTO.eValues.par.map { x =>
-      Csettings.group.getZModOrder.getElementFrom(x)
+      ctx.zModOrder.getElementFrom(x)
     }.seq
 
     println("Getting proof instances..")
@@ -233,4 +294,35 @@ object Verifier extends ProofSettings {
 
     result
   }
+
+  /**
+   * Verifies a partitioned shuffle (see PartitionedShuffle): the batches of every round are rebuilt from the
+   * previous round's output and each batch proof is verified, those of a round in parallel
+   */
+  def verifyPartitionedShuffle(votes: Seq[Pair], shuffledVotes: Seq[Pair], partitioned: PartitionedShuffleDTO,
+    proverId: String, publicKey: Element[_], ctx: CryptoContext): Boolean = {
+
+    val batches = partitioned.batches
+    val rounds = partitioned.proofs.size
+    val wellFormed = PartitionedShuffle.isValid(votes.size, batches, rounds) &&
+      partitioned.intermediateVotes.size == rounds - 1 && partitioned.proofs.forall(_.size == batches)
+
+    wellFormed && {
+      val outputs = partitioned.intermediateVotes.map { v =>
+        CiphertextCodec.decodeAll(ctx.encryptionSpace, v).toIndexedSeq
+      } :+ shuffledVotes.toIndexedSeq
+      val inputs = votes.toIndexedSeq +: outputs.init
+
+      (0 until rounds).forall { round =>
+        println(s"Verifier: partitioned shuffle, round $round..")
+        val in = PartitionedShuffle.split(inputs(round), batches)
+        val out = PartitionedShuffle.slices(outputs(round), batches)
+
+        inputs(round).size == outputs(round).size && (0 until batches).par.forall { b =>
+          verifyShuffle(Util.tupleFromSeq(in(b)), Util.tupleFromSeq(out(b)), partitioned.proofs(round)(b),
+            PartitionedShuffle.proverId(proverId, round, b), publicKey, ctx)
+        }
+      }
+    }
+  }
 }
\ No newline at end of file
@@ -23,12 +23,15 @@ import syntax.sized._
 import ops.nat._
 import play.api.libs.json._
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
 import java.math.BigInteger
 import scala.util.{Try, Success, Failure}
 import akka.actor.ActorSystem
 import akka.stream.{ActorMaterializer, Materializer}
 import election._
 import models._
+import app.CryptoContext
+import utils.CiphertextStore
 
 class ElectionStateMaintainer[W <: Nat : ToInt](val uid : String)
   extends ElectionJsonFormatter
@@ -68,12 +71,32 @@ class ElectionStateMaintainer[W <: Nat : ToInt](val uid : String)
   
   def startVotes(in: Election[W, Combined]) : Election[W, Votes] = {
     println(s"GG ElectionStateMaintainer::startVotes")
-    new Election[W, Votes](Votes(List[String](), 0, in.state))
+    new Election[W, Votes](Votes(CiphertextStore.empty, 0, in.state))
   }
   
   def addVotes(in: Election[W, Votes], votes : List[String]) : Election[W, Votes] = {
     println(s"GG ElectionStateMaintainer::addVotes")
-    new Election[W, Votes](Votes(votes ::: in.state.votes, in.state.addVoteIndex + 1, in.state))
+    new Election[W, Votes](Votes(validVotes(votes, in.state.cSettings.group) ::: in.state.votes, in.state.addVoteIndex + 1, in.state))
+  }
+  
+  /**
+   * The votes of a posted batch as a store, without those that are malformed or not in the group
+   *
+   * CiphertextStore rejects the whole batch if any vote fails to parse or (unless bypass-membership-check is
+   * set) is not in the group. Throwing here would leave the election at this addVoteIndex and every later
+   * batch waiting on it, so invalid votes are dropped and logged, and the index still advances.
+   */
+  private def validVotes(votes: List[String], group: GStarMod) : CiphertextStore = {
+    Try(CiphertextStore(votes, group)) getOrElse {
+      votes.foldRight(CiphertextStore.empty) { (vote, store) =>
+        Try(CiphertextStore(List(vote), group)) match {
+          case Success(valid) => valid ::: store
+          case Failure(err) =>
+            println(s"ERROR on addVotes: dropping invalid vote $vote: ${getMessageFromThrowable(err)}")
+            store
+        }
+      }
+    }
   }
   
   def stopVotes(in: Election[W, Votes], lastAddVoteIndex: Int, date: com.github.nscala_time.time.Imports.DateTime) : Election[W, VotesStopped] = {
@@ -512,7 +535,7 @@ class ElectionStateMaintainer[W <: Nat : ToInt](val uid : String)
   }
   
   def pushCreate(jsElection: JsElection, uid: String) {
-    val group = GStarModSafePrime.getInstance(new BigInteger(jsElection.state.cSettings.group))
+    val group = CryptoContext.group(new BigInteger(jsElection.state.cSettings.group))
     val cSettings = CryptoSettings(group, group.getDefaultGenerator())
     if (jsElection.level == ToInt[W].apply()) {
       val election = 
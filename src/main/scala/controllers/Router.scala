@@ -19,6 +19,7 @@ package controllers
 
 import akka.actor.ActorSystem
 import akka.http.scaladsl.Http
+import akka.http.scaladsl.model.HttpResponse
 import akka.stream.{ActorMaterializer, Materializer}
 import scala.concurrent.{Future, Promise}
 import utils.Response
@@ -28,6 +29,8 @@ import akka.http.scaladsl.server.Directives._
 import utils.BoardConfig
 import accumulator._
 import director._
+import mpservice.MPServiceMetrics
+import play.api.libs.json._
 
 object Router extends Response
 {
@@ -96,6 +99,15 @@ object Router extends Response
         }
       }
     } ~
+    path("api" / "mpservice" / "metrics") {
+      pathEnd {
+        get { ctx =>
+          ctx.complete {
+            HttpResponse(status = 200, entity = Json.stringify(response(MPServiceMetrics.snapshot)))
+          }
+        }
+      }
+    } ~
     path(Segments) { segs =>
         pathEnd {
           post { ctx =>
@@ -31,7 +31,7 @@ import akka.stream.ActorMaterializer
 import models._
 import app._
 import accumulator.ElectionDTOData
-import utils.Util
+import utils.{ Util, CiphertextCodec, CiphertextStore }
 
 /**
  * The state machine transitions
@@ -48,7 +48,7 @@ trait DefaultElectionImpl extends ElectionTrait
     val promise = Promise[Election[W, Created]]()
     Future {
       println("Going to start a new Election!")
-      val group = GStarModSafePrime.getFirstInstance(bits)
+      val group = CryptoContext.group(bits)
   // import ch.bfh.unicrypt.math.algebra.additive.parameters.ECZModPrimeParameters
   // import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModPrime
   // val group = ECZModPrime.getInstance(ECZModPrimeParameters.SECP521r1)
@@ -95,7 +95,7 @@ trait DefaultElectionImpl extends ElectionTrait
     Future {
       println(s"Adding share...")
 
-      val result = Verifier.verifyKeyShare(share, in.state.cSettings, proverId)
+      val result = Verifier.verifyKeyShare(share, CryptoContext(in.state), proverId)
       if(result) {
         new Election[W, Shares[Succ[T]]](Shares[Succ[T]](in.state.shares :+ (proverId, share.keyShare), in.state))
       }
@@ -123,7 +123,7 @@ trait DefaultElectionImpl extends ElectionTrait
   def startVotes[W <: Nat : ToInt](in: Election[W, Combined]) : Future[Election[W, Votes]] = {
     Future {
       println("Now waiting for votes")
-      new Election[W, Votes](Votes(List[String](), 0, in.state))
+      new Election[W, Votes](Votes(CiphertextStore.empty, 0, in.state))
     }
   }
 
@@ -132,14 +132,10 @@ trait DefaultElectionImpl extends ElectionTrait
     Future {
       print("+")
 
-      // removed for testing faster
-      /*
-      val elGamal = ElGamalEncryptionScheme.getInstance(in.state.cSettings.generator)
-      // this will throw exception if the vote is invalid
-      elGamal.getEncryptionSpace.getElementFromString(vote)
-      */
+      // this will throw exception if the vote is not a ["a"|"b"] pair, or not in the group (unless bypass-membership-check is set)
+      val store = CiphertextStore(List(vote), in.state.cSettings.group)
 
-      new Election[W, Votes](Votes(vote :: in.state.votes, in.state.addVoteIndex + 1, in.state))
+      new Election[W, Votes](Votes(store ::: in.state.votes, in.state.addVoteIndex + 1, in.state))
     }
   }
 
@@ -148,14 +144,10 @@ trait DefaultElectionImpl extends ElectionTrait
     Future {
       print("+")
 
-      // removed for testing faster
-      /*
-      val elGamal = ElGamalEncryptionScheme.getInstance(in.state.cSettings.generator)
-      // this will throw exception if the vote is invalid
-      votes.map(elGamal.getEncryptionSpace.getElementFromString(_))
-      */
+      // this will throw exception if a vote is not a ["a"|"b"] pair, or not in the group (unless bypass-membership-check is set)
+      val store = CiphertextStore(votes, in.state.cSettings.group)
 
-      new Election[W, Votes](Votes(votes ::: in.state.votes, in.state.addVoteIndex + 1, in.state))
+      new Election[W, Votes](Votes(store ::: in.state.votes, in.state.addVoteIndex + 1, in.state))
     }
   }
 
@@ -179,9 +171,8 @@ trait DefaultElectionImpl extends ElectionTrait
   def addMix[W <: Nat : ToInt, T <: Nat : ToInt](in: Election[W, Mixing[T]], mix: ShuffleResultDTO, proverId: String)(implicit ev: T < W) : Future[Election[W, Mixing[Succ[T]]]] = {
     Future {
       println("Adding mix...")
-      val elGamal = ElGamalEncryptionScheme.getInstance(in.state.cSettings.generator)
-      val keyPairGen = elGamal.getKeyPairGenerator()
-      val publicKey = keyPairGen.getPublicKeySpace().getElementFrom(in.state.publicKey)
+      val ctx = CryptoContext(in.state)
+      val publicKey = ctx.publicKey(in.state.publicKey)
 
       println("Convert votes...")
 
@@ -198,10 +189,10 @@ trait DefaultElectionImpl extends ElectionTrait
       MPBridge.b()
       */
 
-      val shuffled = mix.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
+      val shuffled = CiphertextCodec.decodeAll(ctx.encryptionSpace, mix.votes)
       val votes = in.state match {
-        case s: Mixing[_0] => in.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
-        case _ => in.state.mixes.toList.last.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v) ).seq
+        case s: Mixing[_0] => in.state.votes.elements(ctx.encryptionSpace)
+        case _ => ctx.mixOutput(in.state.mixes.toList.size - 1, in.state.mixes.toList.last.votes)
       }
       println(s"vote conversion: [${System.currentTimeMillis - now} ms]")
 
@@ -216,11 +207,18 @@ trait DefaultElectionImpl extends ElectionTrait
 
       println(s"Verifying shuffle..")
 
-      val ok = Verifier.verifyShuffle(Util.tupleFromSeq(votes), Util.tupleFromSeq(shuffled),
-        mix.shuffleProof, proverId, publicKey, in.state.cSettings)
+      val ok = mix.partitioned match {
+        case Some(partitioned) =>
+          Verifier.verifyPartitionedShuffle(votes, shuffled, partitioned, proverId, publicKey, ctx)
+        case None => mix.shuffleProof.exists { shuffleProof =>
+          Verifier.verifyShuffle(Util.tupleFromSeq(votes), Util.tupleFromSeq(shuffled), shuffleProof, proverId, publicKey, ctx)
+        }
+      }
       if(!ok) throw new Exception()
 
       println(s"Verifying shuffle..Ok")
+      // the next mixer and verifier take this mix's output as input
+      ctx.cacheMixOutput(in.state.mixes.toList.size, mix.votes, shuffled)
 
       new Election[W, Mixing[Succ[T]]](Mixing[Succ[T]](in.state.mixes :+ mix, in.state))
     }
@@ -247,13 +245,13 @@ trait DefaultElectionImpl extends ElectionTrait
     Future {
       println("Adding decryption...")
 
-      val elGamal = ElGamalEncryptionScheme.getInstance(in.state.cSettings.generator)
-      val votes = in.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v).asInstanceOf[Pair]).seq
+      val ctx = CryptoContext(in.state)
+      val votes = in.state.votes.elements(ctx.encryptionSpace)
 
       val sharesMap = in.state.allShares.toMap
-      val share = elGamal.getMessageSpace.getElementFrom(sharesMap(proverId))
+      val share = ctx.messageSpace.getElementFrom(sharesMap(proverId))
 
-      val ok = Verifier.verifyPartialDecryption(decryption, votes, in.state.cSettings, proverId, share)
+      val ok = Verifier.verifyPartialDecryption(decryption, votes, ctx, proverId, share)
       if(!ok) throw new Exception()
 
       new Election[W, Decryptions[Succ[T]]](Decryptions[Succ[T]](in.state.decryptions :+ decryption, in.state))
@@ -287,11 +285,13 @@ trait DefaultElectionImpl extends ElectionTrait
       }
       println("Combining decryptions...Ok")
 
-      val elGamal = ElGamalEncryptionScheme.getInstance(in.state.cSettings.generator)
-      val votes = in.state.votes.par.map( v => Util.getE(elGamal.getEncryptionSpace, v).asInstanceOf[Pair] ).seq
+      val ctx = CryptoContext(in.state)
+      val votes = in.state.votes.elements(ctx.encryptionSpace)
       // a^-x * b = m
       val decrypted = (votes zip combined).par.map(c => c._1.getSecond().apply(c._2)).seq
-      val encoder = ZModPrimeToGStarModSafePrime.getInstance(in.state.cSettings.group)
+      val encoder = ZModPrimeToGStarModSafePrime.getInstance(ctx.group)
+      // no more crypto for this election
+      CryptoContext.remove(in.state.id)
 
       new Election[W, Decrypted](Decrypted(decrypted.par.map(encoder.decode(_).convertToString).seq, in.state))
     }
@@ -22,6 +22,7 @@ import shapeless.ops.nat._
 import com.github.nscala_time.time.Imports._
 import accumulator.BoardReader
 import models._
+import utils.CiphertextStore
 
 /**
  * An election is a typed, purely function state machine with an immutable history
@@ -40,7 +41,7 @@ class Election[+W <: Nat : ToInt, +S <: ElectionState] (val state: S) {
 case class Created(override val id: String, override val cSettings: CryptoSettings, override val uid: String, val dto: ElectionDTO) extends ElectionState(id, cSettings, uid)
 case class Shares[T <: Nat : ToInt](val shares: Sized[List[(String, String)], T], prev: ElectionState) extends ElectionStateShares(prev, shares.toList) with HasHistory
 case class Combined(override val publicKey: String, prev: ElectionStateShares) extends ElectionStatePk(prev, publicKey) with HasHistory
-case class Votes(votes: List[String], addVoteIndex: Int, prev: ElectionStatePk) extends ElectionStatePk(prev, prev.publicKey) with HasHistory
+case class Votes(votes: CiphertextStore, addVoteIndex: Int, prev: ElectionStatePk) extends ElectionStatePk(prev, prev.publicKey) with HasHistory
 case class VotesStopped(lastAddVoteIndex: Int, prev: Votes, date: DateTime = DateTime.now) extends ElectionStateVotes(prev, prev.votes) with HasHistory
 case class Mixing[T <: Nat : ToInt](mixes: Sized[List[ShuffleResultDTO], T], prev: ElectionStateVotes) extends ElectionStateVotes(prev, prev.votes) with HasHistory
 case class Mixed(prev: Mixing[_ <: Nat]) extends ElectionStateVotes(prev, prev.votes) with HasHistory
@@ -77,4 +78,4 @@ trait HasHistory {
 abstract class ElectionState(val id: String, val cSettings: CryptoSettings,val uid: String)
 abstract class ElectionStateShares(es: ElectionState, val allShares: List[(String, String)]) extends ElectionState(es.id, es.cSettings, es.uid)
 abstract class ElectionStatePk(ess: ElectionStateShares, val publicKey: String) extends ElectionStateShares(ess, ess.allShares)
-abstract class ElectionStateVotes(espk: ElectionStatePk, val votes:List[String]) extends ElectionStatePk(espk, espk.publicKey)
\ No newline at end of file
+abstract class ElectionStateVotes(espk: ElectionStatePk, val votes: CiphertextStore) extends ElectionStatePk(espk, espk.publicKey)
\ No newline at end of file
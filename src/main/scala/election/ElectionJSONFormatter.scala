@@ -64,6 +64,7 @@ trait ElectionJsonFormatter extends ElectionDTOFormatter {
   implicit val PermutationProofDTOF = Json.format[PermutationProofDTO]
   implicit val MixProofDTOF = Json.format[MixProofDTO]
   implicit val ShuffleProofDTOF = Json.format[ShuffleProofDTO]
+  implicit val PartitionedShuffleDTOF = Json.format[PartitionedShuffleDTO]
   implicit val ShuffleResultDTOF = Json.format[ShuffleResultDTO]
   implicit val JsMixingF = Json.format[JsMixing]
   implicit val JsDecryptionsF = Json.format[JsDecryptions]
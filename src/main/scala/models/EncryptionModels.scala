@@ -42,7 +42,12 @@ case class EncryptionKeyShareDTO(sigmaProofDTO: SigmaProofDTO, keyShare: String)
 case class PartialDecryptionDTO(partialDecryptions: Seq[String], proofDTO: SigmaProofDTO)
 case class SigmaProofDTO(commitment: String, challenge: String, response: String)
 
-case class ShuffleResultDTO(shuffleProof: ShuffleProofDTO, votes: Seq[String])
+// shuffleProof is empty for a partitioned shuffle, whose proofs are in partitioned instead
+case class ShuffleResultDTO(shuffleProof: Option[ShuffleProofDTO], votes: Seq[String],
+  partitioned: Option[PartitionedShuffleDTO] = None)
+// a shuffle done as rounds of independent batch shuffles, see app.PartitionedShuffle. The proofs of round r are
+// ordered by batch, intermediateVotes holds the output of every round but the last (that is the shuffle's votes)
+case class PartitionedShuffleDTO(batches: Int, proofs: Seq[Seq[ShuffleProofDTO]], intermediateVotes: Seq[Seq[String]])
 case class PermutationProofDTO(commitment: String, challenge: String, response: String,
   bridgingCommitments: Seq[String], eValues: Seq[String])
 case class MixProofDTO(commitment: String, challenge: String, response: String, eValues: Seq[String])
@@ -19,26 +19,35 @@ package mpservice
 
 import akka.actor.{ Actor, Props, UnboundedStash, ActorLogging, Inbox, ActorRef }
 import scala.concurrent.duration.DurationInt
-import akka.routing.FromConfig
+import akka.routing.{ FromConfig, Broadcast }
 import akka.actor.ActorSystem
 import java.math.BigInteger
 import scala.collection._
 import com.typesafe.config.ConfigFactory
 import scala.util.Try
 import scala.util.Success
+import scala.concurrent.{ Future, ExecutionContext }
+import akka.pattern.ask
+import akka.util.Timeout
 import com.squareup.jnagmp.Gmp
 
 /******************** PUBLIC API ********************/
 
 /**
  * Represents a modular exponentiation operation
+ *
+ * secret marks exponents that must not leak through timing (see MPBridge.secret)
  */
-case class ModPow(base: BigInteger, pow: BigInteger, mod: BigInteger)
+case class ModPow(base: BigInteger, pow: BigInteger, mod: BigInteger, secret: Boolean = false) {
+  def this(base: BigInteger, pow: BigInteger, mod: BigInteger) = this(base, pow, mod, false)
+}
 
 /**
  * Represents a modular exponentiation operation with common modulus (see below)
  */
-case class ModPow2(base: BigInteger, pow: BigInteger)
+case class ModPow2(base: BigInteger, pow: BigInteger, secret: Boolean = false) {
+  def this(base: BigInteger, pow: BigInteger) = this(base, pow, false)
+}
 
 /**
  * Represents a modular exponentiation operation with common modulus and result
@@ -55,6 +64,10 @@ trait ModPowService {
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger]
 
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult]
+  // compute the product of modular exponentiations with common modulus (multi-exponentiation)
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger
+  // non blocking variant of compute with common modulus, allows several batches in flight
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]]
 }
 
 /******************** IMPLEMENTATION ********************/
@@ -66,6 +79,8 @@ object MPService extends ModPowService {
   def compute(work: Array[ModPow]): Array[BigInteger] = service.compute(work)
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = service.compute(work, mod)
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = service.computeDebug(work, mod)
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = service.computeProduct(work, mod)
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = service.computeAsync(work, mod)
 
   def shutdown = service.shutdown
   def init = {}
@@ -100,6 +115,59 @@ object MPBridgeS {
     ret
   }
 
+  /**
+   * Non blocking version of ex
+   *
+   * f is recorded on the calling thread and the batch is sent without waiting for the answers, the
+   * replay runs on the given execution context once they arrive. Independent blocks can thus be
+   * started one after another and be in flight at the same time.
+   */
+  def exAsync[T](f: => T, v: String)(implicit ec: ExecutionContext): Future[T] = {
+    var requests: Array[ModPow2] = null
+    MPBridge.startRecord(v)
+    // both passes clear the thread's state whatever happens, the threads are pooled ones
+    val recorded = try {
+      f
+    }
+    finally {
+      requests = MPBridge.stopRecord()
+      MPBridge.reset()
+    }
+    val modulus = MPBridge.getModulus
+    if(requests.length > 0) {
+      val now = System.currentTimeMillis
+      MPService.computeAsync(requests, modulus).map { answers =>
+        println(s"\nC (async): [${System.currentTimeMillis - now} ms]")
+        MPBridge.startReplayDetached(answers)
+        try {
+          val ret = f
+          MPBridge.stopReplay()
+
+          ret
+        }
+        finally {
+          MPBridge.stopReplayDetached()
+        }
+      }
+    }
+    else {
+      Future.successful(recorded)
+    }
+  }
+
+  /**
+   * Parallel version of ex, f is applied to the items on several threads and the modexps of all of
+   * them are computed as one batch (see MPBridge.exParallel)
+   */
+  def exPar[A, T](items: Seq[A], v: String)(f: A => T): Seq[T] = {
+    import scala.collection.JavaConverters._
+    val indexed = items.toIndexedSeq
+    MPBridge.exParallel(indexed.length, new java.util.function.IntFunction[T] { def apply(i: Int) = f(indexed(i)) }, v).asScala
+  }
+
+  // see MPBridge.secret
+  def secret[T](f: => T): T = MPBridge.secret(new java.util.function.Supplier[T] { def get() = f })
+
   def init(useGmp: Boolean, useExtractor: Boolean) = MPBridge.init(useGmp, useExtractor)
   def shutdown = MPBridge.shutdown
 
@@ -148,29 +216,38 @@ object MPBridgeS {
 }
 
 object SequentialModPowService extends ModPowService {
-  def compute(work: Array[ModPow]): Array[BigInteger] = work.map(x => x.base.modPow(x.pow, x.mod))
-  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.map(x => x.base.modPow(x.pow, mod))
+  def compute(work: Array[ModPow]): Array[BigInteger] = work.map(x => MPBridge.modPowLocal(x.base, x.pow, x.mod, false, x.secret))
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.map(x => MPBridge.modPowLocal(x.base, x.pow, mod, false, x.secret))
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
-    work.map(x => ModPowResult(x.base, x.pow, mod, x.base.modPow(x.pow, mod))).seq.toArray
+    work.map(x => ModPowResult(x.base, x.pow, mod, MPBridge.modPowLocal(x.base, x.pow, mod, false, x.secret))).seq.toArray
   }
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = MultiExp.compute(work, mod)
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = Future(compute(work, mod))(ExecutionContext.global)
 }
 object GmpParallelModPowService extends ModPowService {
   def compute(work: Array[ModPow]): Array[BigInteger] = {
-    work.par.map(x => Gmp.modPowInsecure(x.base, x.pow, x.mod)).seq.toArray
+    work.par.map(x => MPBridge.modPowLocal(x.base, x.pow, x.mod, true, x.secret)).seq.toArray
   }
+  // the common modulus is imported into gmp once for the whole batch
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
-    work.par.map(x => Gmp.modPowInsecure(x.base, x.pow, mod)).seq.toArray
+    val gmpMod = MPBridge.batchModulus(mod, true)
+    work.par.map(x => MPBridge.modPowLocal(x.base, x.pow, gmpMod, true, x.secret)).seq.toArray
   }
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
-    work.par.map(x => ModPowResult(x.base, x.pow, mod, Gmp.modPowInsecure(x.base, x.pow, mod))).seq.toArray
+    val gmpMod = MPBridge.batchModulus(mod, true)
+    work.par.map(x => ModPowResult(x.base, x.pow, mod, MPBridge.modPowLocal(x.base, x.pow, gmpMod, true, x.secret))).seq.toArray
   }
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = MultiExp.computeParallel(work, mod, MPBridge.getMultiExpChunk)
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = Future(compute(work, mod))(ExecutionContext.global)
 }
 object ParallelModPowService extends ModPowService {
-  def compute(work: Array[ModPow]): Array[BigInteger] = work.par.map(x => x.base.modPow(x.pow, x.mod)).seq.toArray
-  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.par.map(x => x.base.modPow(x.pow, mod)).seq.toArray
+  def compute(work: Array[ModPow]): Array[BigInteger] = work.par.map(x => MPBridge.modPowLocal(x.base, x.pow, x.mod, false, x.secret)).seq.toArray
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.par.map(x => MPBridge.modPowLocal(x.base, x.pow, mod, false, x.secret)).seq.toArray
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
-    work.par.map(x => ModPowResult(x.base, x.pow, mod, x.base.modPow(x.pow, mod))).seq.toArray
+    work.par.map(x => ModPowResult(x.base, x.pow, mod, MPBridge.modPowLocal(x.base, x.pow, mod, false, x.secret))).seq.toArray
   }
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = MultiExp.computeParallel(work, mod, MPBridge.getMultiExpChunk)
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = Future(compute(work, mod))(ExecutionContext.global)
 }
 
 /******************** AKKA ********************/
@@ -182,12 +259,43 @@ case class WorkReply(requestId: Int, workId: Int, result: Array[BigInteger])
 case class ModPowArray(modpows: Array[ModPow])
 case class ModPowArrayFixedMod(modpows: Array[ModPow2], mod: BigInteger)
 case class ModPowArrayResult(result: Array[BigInteger])
+// multi-exponentiation, each chunk is reduced to a single product
+case class WorkProduct(requestId: Int, workId: Int, work: Array[ModPow2], mod: BigInteger)
+case class WorkReplyProduct(requestId: Int, workId: Int, result: BigInteger)
+case class ModPowArrayProduct(modpows: Array[ModPow2], mod: BigInteger)
+case class ModPowProductResult(result: BigInteger)
 
 // debugging
 case class WorkFixedModDebug(requestId: Int, workId: Int, work: Array[ModPow2], mod: BigInteger)
 case class WorkReplyDebug(requestId: Int, workId: Int, result: Array[ModPowResult])
 case class ModPowArrayFixedModDebug(modpows: Array[ModPow2], mod: BigInteger)
 case class ModPowArrayResultDebug(result: Array[ModPowResult])
+// pull scheduling, the master announces work and idle workers ask for chunks
+case object WorkAvailable
+case object WorkRequest
+case object SchedulerTick
+// per request worker sessions, the modulus and repeated bases are sent once per worker
+case class WorkSession(requestId: Int, mod: BigInteger, bases: Array[BigInteger], fixedBases: Array[Int])
+// base i is bases(baseRefs(i)) from the session, or the next inline base if baseRefs(i) is -1
+case class WorkCached(requestId: Int, workId: Int, baseRefs: Array[Int], inlineBases: Array[BigInteger], pows: Array[BigInteger],
+  secret: Array[Boolean], debug: Boolean)
+case class EndSession(requestId: Int)
+// reply to a chunk whose session the worker no longer has, the master sends the session and the chunk again
+case class WorkNoSession(requestId: Int, workId: Int)
+
+/**
+ * Settings for pull based scheduling of requests with common modulus
+ *
+ * Chunk sizes are adapted so that each chunk takes about targetChunkMs on the worker it is sent to, and
+ * chunks that take longer than speculativeFactor times their expected time are sent again to an idle worker.
+ */
+case class PullSettings(enabled: Boolean, targetChunkMs: Int, speculativeFactor: Double, fixedBaseUses: Int)
+
+object PullSettings {
+  def apply(config: com.typesafe.config.Config): PullSettings = PullSettings(config.getBoolean("master.pull-scheduling"),
+    config.getInt("master.target-chunk-ms"), config.getDouble("master.speculative-factor"),
+    config.getInt("master.session-fixed-base-uses"))
+}
 
 class AkkaModPowService(system: ActorSystem, modPowService: ActorRef) extends ModPowService {
 
@@ -221,6 +329,21 @@ class AkkaModPowService(system: ActorSystem, modPowService: ActorRef) extends Mo
       case _ => throw new Exception()
     }
   }
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = {
+    val inbox = Inbox.create(system)
+
+    inbox.send(modPowService, ModPowArrayProduct(work, mod))
+    Try(inbox.receive(1000.seconds)) match {
+      case Success(ModPowProductResult(answer)) => answer
+      // FIXME
+      case _ => throw new Exception()
+    }
+  }
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = {
+    implicit val timeout = Timeout(1000.seconds)
+
+    (modPowService ? ModPowArrayFixedMod(work, mod)).mapTo[ModPowArrayResult].map(_.result)(system.dispatcher)
+  }
 }
 
 object AkkaModPowService extends ModPowService {
@@ -230,19 +353,23 @@ object AkkaModPowService extends ModPowService {
   val sendDelay = config.getInt("master.send-delay-ms")
   val minChunks = config.getInt("master.min-chunk")
   val useGmp = config.getBoolean("mpservice.use-gmp")
+  val pull = PullSettings(config)
 
-  val serviceActor = system.actorOf(ModPowServiceActor.props(minChunks, maxChunkSize, sendDelay, useGmp), name = "ModPowService")
+  val serviceActor = system.actorOf(ModPowServiceActor.props(minChunks, maxChunkSize, sendDelay, useGmp, pull), name = "ModPowService")
   val service = new AkkaModPowService(system, serviceActor)
 
   def compute(work: Array[ModPow]): Array[BigInteger] = service.compute(work)
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = service.compute(work, mod)
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = service.computeDebug(work, mod)
+  def computeProduct(work: Array[ModPow2], mod: BigInteger): BigInteger = service.computeProduct(work, mod)
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): Future[Array[BigInteger]] = service.computeAsync(work, mod)
   def shutdown = system.terminate
 }
 
-class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDelay: Int, val useGmp: Boolean) extends Actor with ActorLogging {
+class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDelay: Int, val useGmp: Boolean, val pull: PullSettings) extends Actor with ActorLogging {
   case class RequestData(client: ActorRef, length: Int, results: mutable.ArrayBuffer[WorkReply], sent: Long = System.currentTimeMillis)
   case class RequestDataDebug(client: ActorRef, length: Int, results: mutable.ArrayBuffer[WorkReplyDebug], sent: Long = System.currentTimeMillis)
+  case class RequestDataProduct(client: ActorRef, length: Int, mod: BigInteger, results: mutable.ArrayBuffer[WorkReplyProduct], sent: Long = System.currentTimeMillis)
 
   val workerRouter = context.actorOf(WorkerActor.props(useGmp).withRouter(FromConfig()), name = "workerRouter")
 
@@ -250,6 +377,203 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
   var requestId = 0
   val requests = mutable.Map[Int, RequestData]()
   val requestsDebug = mutable.Map[Int, RequestDataDebug]()
+  val requestsProduct = mutable.Map[Int, RequestDataProduct]()
+
+  // pull scheduling state, jobs are served in arrival order
+  class Job(val id: Int, val client: ActorRef, val modpows: Array[ModPow2], val mod: BigInteger, val debug: Boolean) {
+    var offset = 0
+    var nextWorkId = 0
+    var completed = 0
+    val results = mutable.Map[Int, Array[_]]()
+    // session data, repeated bases are sent once to each worker that gets a chunk
+    var sessionBases = Array[BigInteger]()
+    var baseRefs = Array[Int]()
+    var fixedBases = Array[Int]()
+    val sessionWorkers = mutable.Set[ActorRef]()
+  }
+  class Chunk(val job: Job, val workId: Int, val from: Int, val to: Int, val worker: ActorRef, val sent: Long) {
+    var speculated = false
+  }
+  val jobs = mutable.LinkedHashMap[Int, Job]()
+  val inFlight = mutable.Map[(Int, Int), Chunk]()
+  // outstanding chunks per worker, idle workers and observed throughput in units / ms
+  val outstanding = mutable.Map[ActorRef, Int]()
+  val idle = mutable.Set[ActorRef]()
+  val rates = mutable.Map[ActorRef, Double]()
+
+  val tick = if(pull.enabled) {
+    Some(context.system.scheduler.schedule(1.second, 1.second, self, SchedulerTick)(context.dispatcher))
+  } else None
+
+  override def preStart() = MPServiceMetrics.registerMBean()
+
+  override def postStop() = tick.foreach(_.cancel())
+
+  // refreshes the queue gauges after every message
+  override def aroundReceive(receive: Receive, msg: Any) = {
+    super.aroundReceive(receive, msg)
+    val queued = jobs.values.map(job => job.modpows.length - job.offset).sum
+    val pushed = requests.values.map(r => r.length - r.results.length).sum +
+      requestsDebug.values.map(r => r.length - r.results.length).sum +
+      requestsProduct.values.map(r => r.length - r.results.length).sum
+    MPServiceMetrics.setQueue(queued, inFlight.size + pushed)
+  }
+
+  def enqueue(job: Job) = {
+    MPServiceMetrics.requestStarted(job.id, job.modpows.length)
+    if(job.modpows.length == 0) {
+      finish(job)
+    }
+    else {
+      prepareSession(job)
+      jobs.put(job.id, job)
+      println(s"request with ${job.modpows.length} units, ${job.sessionBases.length} repeated bases, pull scheduling")
+      idle.toList.foreach(pullWork)
+      // also reaches workers that joined since the last request
+      workerRouter ! Broadcast(WorkAvailable)
+    }
+  }
+
+  // finds repeated bases, by reference since recorded requests share the BigInteger of a reused base
+  def prepareSession(job: Job) = {
+    val counts = new java.util.IdentityHashMap[BigInteger, Array[Int]]()
+    job.modpows.foreach { m =>
+      val count = counts.get(m.base)
+      if(count == null) counts.put(m.base, Array(1))
+      else count(0) += 1
+    }
+    val index = new java.util.IdentityHashMap[BigInteger, Integer]()
+    val bases = mutable.ArrayBuffer[BigInteger]()
+    val fixed = mutable.ArrayBuffer[Int]()
+    job.baseRefs = job.modpows.map { m =>
+      val count = counts.get(m.base)(0)
+      val known = index.get(m.base)
+      if(count < 2) {
+        -1
+      }
+      else if(known != null) {
+        known.intValue
+      }
+      else {
+        val i = bases.length
+        index.put(m.base, i)
+        bases += m.base
+        // worth a fixed base table on the workers
+        if(count >= pull.fixedBaseUses) fixed += i
+        i
+      }
+    }
+    job.sessionBases = bases.toArray
+    job.fixedBases = fixed.toArray
+  }
+
+  // sends the worker its next chunk, unless it already has one
+  def pullWork(worker: ActorRef): Unit = {
+    if(outstanding.getOrElse(worker, 0) == 0) {
+      if(assign(worker) || speculate(worker)) idle -= worker
+      else idle += worker
+    }
+  }
+
+  def assign(worker: ActorRef): Boolean = {
+    jobs.values.find(job => job.offset < job.modpows.length) match {
+      case Some(job) =>
+        val to = math.min(job.offset + chunkSize(worker, job), job.modpows.length)
+        val chunk = new Chunk(job, job.nextWorkId, job.offset, to, worker, System.currentTimeMillis)
+        job.nextWorkId += 1
+        job.offset = to
+        inFlight.put((job.id, chunk.workId), chunk)
+        send(worker, chunk)
+        true
+      case None => false
+    }
+  }
+
+  // re-dispatches the oldest straggler chunk, the first reply wins
+  def speculate(worker: ActorRef): Boolean = {
+    val now = System.currentTimeMillis
+    val stragglers = inFlight.values.filter { c =>
+      !c.speculated && c.worker != worker && (now - c.sent) > pull.speculativeFactor * expectedMs(c)
+    }
+    if(stragglers.isEmpty) {
+      false
+    }
+    else {
+      val chunk = stragglers.minBy(_.sent)
+      println(s"speculative re-dispatch of chunk ${chunk.workId} of request ${chunk.job.id}")
+      chunk.speculated = true
+      send(worker, chunk)
+      true
+    }
+  }
+
+  def send(worker: ActorRef, chunk: Chunk) = {
+    val job = chunk.job
+    outstanding.put(worker, outstanding.getOrElse(worker, 0) + 1)
+    // messages between two actors are delivered in order, so the session arrives first
+    if(!job.sessionWorkers.contains(worker)) {
+      worker ! WorkSession(job.id, job.mod, job.sessionBases, job.fixedBases)
+      job.sessionWorkers += worker
+    }
+    val work = job.modpows.slice(chunk.from, chunk.to)
+    val refs = job.baseRefs.slice(chunk.from, chunk.to)
+    val inlineBases = work.zip(refs).collect { case (w, -1) => w.base }
+    worker ! WorkCached(job.id, chunk.workId, refs, inlineBases, work.map(_.pow), work.map(_.secret), job.debug)
+  }
+
+  def chunkSize(worker: ActorRef, job: Job) = {
+    val size = rates.get(worker) match {
+      case Some(rate) => (rate * pull.targetChunkMs).toInt
+      // no measurements yet, use the static split
+      case None => job.modpows.length / minChunks
+    }
+    math.min(math.max(size, 1), maxChunkSize)
+  }
+
+  def expectedMs(chunk: Chunk) = rates.get(chunk.worker).map((chunk.to - chunk.from) / _).getOrElse(pull.targetChunkMs.toDouble)
+
+  def completed(worker: ActorRef, requestId: Int, workId: Int, result: Array[_]) = {
+    outstanding.put(worker, math.max(outstanding.getOrElse(worker, 0) - 1, 0))
+    inFlight.remove((requestId, workId)) match {
+      case Some(chunk) =>
+        val units = chunk.to - chunk.from
+        val roundTrip = System.currentTimeMillis - chunk.sent
+        if(worker == chunk.worker) {
+          val rate = units.toDouble / math.max(roundTrip, 1)
+          rates.put(worker, rates.get(worker).map(r => (r + rate) / 2).getOrElse(rate))
+        }
+        MPServiceMetrics.chunkCompleted(worker.path.toString, units, roundTrip, worker == chunk.worker)
+        val job = chunk.job
+        job.results.put(workId, result)
+        job.completed += units
+        if(job.completed == job.modpows.length) {
+          jobs.remove(job.id)
+          finish(job)
+        }
+      // duplicate reply of a speculated chunk
+      case None =>
+    }
+    pullWork(worker)
+  }
+
+  // the worker dropped the session (see WorkerActor), the chunk goes back to it preceded by the session
+  def sessionLost(worker: ActorRef, requestId: Int, workId: Int) = {
+    outstanding.put(worker, math.max(outstanding.getOrElse(worker, 0) - 1, 0))
+    jobs.get(requestId).foreach(_.sessionWorkers -= worker)
+    inFlight.get((requestId, workId)) match {
+      case Some(chunk) => send(worker, chunk)
+      // already completed by a speculative copy
+      case None => pullWork(worker)
+    }
+  }
+
+  def finish(job: Job) = {
+    MPServiceMetrics.requestFinished(job.id)
+    job.sessionWorkers.foreach(_ ! EndSession(job.id))
+    val ordered = (0 until job.nextWorkId).map(job.results)
+    if(job.debug) job.client ! ModPowArrayResultDebug(ordered.flatMap(_.asInstanceOf[Array[ModPowResult]]).toArray)
+    else job.client ! ModPowArrayResult(ordered.flatMap(_.asInstanceOf[Array[BigInteger]]).toArray)
+  }
 
 
   // FIXME move to util
@@ -261,8 +585,29 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
 
   def receive: Receive = {
 
+    case ModPowArrayFixedMod(modpows, mod) if pull.enabled => {
+      requestId = requestId + 1
+      enqueue(new Job(requestId, sender, modpows, mod, false))
+    }
+
+    case ModPowArrayFixedModDebug(modpows, mod) if pull.enabled => {
+      requestId = requestId + 1
+      enqueue(new Job(requestId, sender, modpows, mod, true))
+    }
+
+    case WorkRequest => pullWork(sender)
+
+    case WorkNoSession(requestId, workId) => sessionLost(sender, requestId, workId)
+
+    case SchedulerTick => idle.toList.foreach(pullWork)
+
+    case w: WorkReply if !requests.contains(w.requestId) => completed(sender, w.requestId, w.workId, w.result)
+
+    case w: WorkReplyDebug if !requestsDebug.contains(w.requestId) => completed(sender, w.requestId, w.workId, w.result)
+
     case ModPowArray(modpows) => {
       requestId = requestId + 1
+      MPServiceMetrics.requestStarted(requestId, modpows.length)
       val size = math.min(math.max(modpows.length / minChunks, 1), maxChunkSize)
       val chunks: Array[Array[ModPow]] = cut(modpows, modpows.length / size).toArray
       requests.put(requestId, RequestData(sender, chunks.length, mutable.ArrayBuffer()))
@@ -277,6 +622,7 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
 
     case ModPowArrayFixedMod(modpows, mod) => {
       requestId = requestId + 1
+      MPServiceMetrics.requestStarted(requestId, modpows.length)
       val size = math.min(math.max(modpows.length / minChunks, 1), maxChunkSize)
       val chunks: Array[Array[ModPow2]] = cut(modpows, modpows.length / size).toArray
       requests.put(requestId, RequestData(sender, chunks.length, mutable.ArrayBuffer()))
@@ -291,6 +637,7 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
 
     case ModPowArrayFixedModDebug(modpows, mod) => {
       requestId = requestId + 1
+      MPServiceMetrics.requestStarted(requestId, modpows.length)
       val size = math.min(math.max(modpows.length / minChunks, 1), maxChunkSize)
       val chunks: Array[Array[ModPow2]] = cut(modpows, modpows.length / size).toArray
       requestsDebug.put(requestId, RequestDataDebug(sender, chunks.length, mutable.ArrayBuffer()))
@@ -303,12 +650,30 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
       }
     }
 
+    case ModPowArrayProduct(modpows, mod) => {
+      requestId = requestId + 1
+      MPServiceMetrics.requestStarted(requestId, modpows.length)
+      // multi-exponentiation gets cheaper per unit with larger chunks
+      val size = math.min(math.max(modpows.length / minChunks, 1), MPBridge.getMultiExpChunk)
+      val chunks: Array[Array[ModPow2]] = cut(modpows, math.max(modpows.length / size, 1)).toArray
+      requestsProduct.put(requestId, RequestDataProduct(sender, chunks.length, mod, mutable.ArrayBuffer()))
+      println(s"product request with ${modpows.length} units, splitting into ${chunks.length} chunks")
+      chunks.indices.foreach { i =>
+        val work = WorkProduct(requestId, i, chunks(i), mod)
+
+        Thread sleep sendDelay
+        workerRouter ! work
+      }
+    }
+
     case w: WorkReply => {
       val requestData = requests.get(w.requestId).get
       requestData.results += w
       val diff = System.currentTimeMillis - requestData.sent
       // println(s"${w.requestId} ${w.workId} $diff")
+      MPServiceMetrics.chunkCompleted(sender.path.toString, w.result.length, diff, false)
       if(requestData.results.length == requestData.length) {
+        MPServiceMetrics.requestFinished(w.requestId)
         requests.remove(w.requestId)
         val sorted = requestData.results.sortWith(_.workId < _.workId)
         requestData.client ! ModPowArrayResult(sorted.flatMap(_.result).toArray)
@@ -320,19 +685,80 @@ class ModPowServiceActor(val minChunks: Int, val maxChunkSize: Int, val sendDela
       requestData.results += w
       val diff = System.currentTimeMillis - requestData.sent
       // println(s"${w.requestId} ${w.workId} $diff")
+      MPServiceMetrics.chunkCompleted(sender.path.toString, w.result.length, diff, false)
       if(requestData.results.length == requestData.length) {
+        MPServiceMetrics.requestFinished(w.requestId)
         requestsDebug.remove(w.requestId)
         val sorted = requestData.results.sortWith(_.workId < _.workId)
         requestData.client ! ModPowArrayResultDebug(sorted.flatMap(_.result).toArray)
       }
     }
+
+    case w: WorkReplyProduct => {
+      val requestData = requestsProduct.get(w.requestId).get
+      requestData.results += w
+      MPServiceMetrics.chunkCompleted(sender.path.toString, 0, System.currentTimeMillis - requestData.sent, false)
+      if(requestData.results.length == requestData.length) {
+        MPServiceMetrics.requestFinished(w.requestId)
+        requestsProduct.remove(w.requestId)
+        val product = requestData.results.map(_.result).foldLeft(BigInteger.ONE) { (a, b) =>
+          a.multiply(b).mod(requestData.mod)
+        }
+        requestData.client ! ModPowProductResult(product)
+      }
+    }
   }
 }
 
 class WorkerActor(val useGmp: Boolean) extends Actor with ActorLogging {
   val service = if(useGmp) GmpParallelModPowService else ParallelModPowService
 
+  // open sessions by request id, registered holds the fixed bases this worker registered for it
+  case class Session(mod: BigInteger, bases: Array[BigInteger], registered: Seq[BigInteger])
+  // least recently used first
+  val sessions = mutable.LinkedHashMap[Int, Session]()
+  // in case EndSession messages are lost. The master sends a worker one chunk at a time, so the session of
+  // the chunk in flight is the most recently used one and is never the one evicted. A later chunk of an
+  // evicted session is answered with WorkNoSession
+  val maxSessions = 16
+
+  def touch(requestId: Int) = sessions.remove(requestId).foreach(sessions.put(requestId, _))
+
+  def endSession(requestId: Int) = sessions.remove(requestId).foreach { session =>
+    session.registered.foreach(FixedBaseModPow.unregister(_, session.mod))
+  }
+
   def receive: Receive = {
+    case WorkAvailable => sender ! WorkRequest
+    case WorkSession(requestId, mod, bases, fixedBases) => {
+      if(sessions.contains(requestId)) {
+        touch(requestId)
+      }
+      else {
+        // each registration is a reference, released in endSession even if the table already existed
+        val registered = fixedBases.map(bases(_)).toSeq
+        registered.foreach(FixedBaseModPow.register(_, mod))
+        sessions.put(requestId, Session(mod, bases, registered))
+        while(sessions.size > maxSessions) endSession(sessions.head._1)
+      }
+    }
+    case WorkCached(requestId, workId, refs, inlineBases, pows, secret, debug) => sessions.get(requestId) match {
+      case Some(session) =>
+        touch(requestId)
+        val inline = inlineBases.iterator
+        val modpows = new Array[ModPow2](refs.length)
+        for(i <- refs.indices) {
+          val base = if(refs(i) < 0) inline.next() else session.bases(refs(i))
+          modpows(i) = ModPow2(base, pows(i), secret(i))
+        }
+        if(debug) sender ! WorkReplyDebug(requestId, workId, service.computeDebug(modpows, session.mod))
+        else sender ! WorkReply(requestId, workId, service.compute(modpows, session.mod))
+        print("=")
+      case None =>
+        log.warning(s"no session for request $requestId, asking for it again")
+        sender ! WorkNoSession(requestId, workId)
+    }
+    case EndSession(requestId) => endSession(requestId)
     case Work(requestId, workId, modpows) => {
       // println(s"received request length ${modpows.length} at actor $this")
       val before = System.currentTimeMillis
@@ -360,6 +786,11 @@ class WorkerActor(val useGmp: Boolean) extends Actor with ActorLogging {
       // println(s"$requestId $workId $diff")
       sender ! WorkReplyDebug(requestId, workId, result)
     }
+    case WorkProduct(requestId, workId, modpows, mod) => {
+      val result = service.computeProduct(modpows, mod)
+      print("*")
+      sender ! WorkReplyProduct(requestId, workId, result)
+    }
   }
 }
 
@@ -368,7 +799,8 @@ object WorkerActor {
 }
 
 object ModPowServiceActor {
-  def props(minChunks: Int, maxChunkSize: Int, sendDelay: Int, useGmp: Boolean): Props = Props(new ModPowServiceActor(minChunks, maxChunkSize, sendDelay, useGmp))
+  def props(minChunks: Int, maxChunkSize: Int, sendDelay: Int, useGmp: Boolean, pull: PullSettings): Props =
+    Props(new ModPowServiceActor(minChunks, maxChunkSize, sendDelay, useGmp, pull))
 }
 
 /******************** LAUNCHER ********************/
@@ -391,9 +823,10 @@ object TestApp {
     val sendDelay = config.getInt("master.send-delay-ms")
     val minChunks = config.getInt("master.min-chunk")
     val useGmp = config.getBoolean("mpservice.use-gmp")
+    val pull = PullSettings(config)
     // val metricsIntervalSeconds = config.getInt("producer.metrics-interval-seconds")
     // system.actorOf(ClusterListener.props(metricsIntervalSeconds))
-    val serviceActor = system.actorOf(ModPowServiceActor.props(minChunks, maxChunkSize, sendDelay, useGmp), name = "ModPowService")
+    val serviceActor = system.actorOf(ModPowServiceActor.props(minChunks, maxChunkSize, sendDelay, useGmp, pull), name = "ModPowService")
     val service = new AkkaModPowService(system, serviceActor)
 
     val total = 300000
@@ -0,0 +1,150 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{ AtomicLong, AtomicLongArray }
+import javax.management.ObjectName
+import scala.collection.JavaConversions._
+import play.api.libs.json._
+
+/**
+ * Metrics snapshots, as served by the /api/mpservice/metrics endpoint
+ */
+case class RequestMetrics(id: Int, units: Int, elapsedMs: Long, modPowsPerSecond: Double, done: Boolean)
+case class WorkerMetrics(worker: String, units: Long, chunks: Long, modPowsPerSecond: Double)
+case class MetricsSnapshot(inFlightRequests: Int, queueDepth: Long, chunksInFlight: Long, completedRequests: Long,
+  totalUnits: Long, modPowsPerSecond: Double, chunkRoundTripMs: Map[String, Long],
+  requests: Seq[RequestMetrics], workers: Seq[WorkerMetrics])
+
+object MetricsSnapshot {
+  implicit val requestFormat = Json.format[RequestMetrics]
+  implicit val workerFormat = Json.format[WorkerMetrics]
+  implicit val snapshotFormat = Json.format[MetricsSnapshot]
+}
+
+/**
+ * JMX view of the metrics, registered as mpservice:type=ModPowService
+ */
+trait ModPowServiceMXBean {
+  def getInFlightRequests: Int
+  def getQueueDepth: Long
+  def getChunksInFlight: Long
+  def getCompletedRequests: Long
+  def getModPowsPerSecond: Double
+  def getWorkerModPowsPerSecond: java.util.Map[String, java.lang.Double]
+  def getChunkRoundTripMs: java.util.Map[String, java.lang.Long]
+}
+
+/**
+ * Counters updated by ModPowServiceActor
+ *
+ * Only the actor writes, readers (http, jmx) get a consistent enough view through the concurrent
+ * collections and atomics.
+ */
+object MPServiceMetrics extends ModPowServiceMXBean {
+  // upper bounds of the round trip histogram buckets
+  val bucketsMs = Array(10L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, Long.MaxValue)
+  // completed requests kept for the snapshot
+  val history = 50
+
+  private class Request(val id: Int, val units: Int, val started: Long) {
+    @volatile var finished = 0L
+  }
+  private class Worker {
+    val units = new AtomicLong()
+    val chunks = new AtomicLong()
+    val busyMs = new AtomicLong()
+  }
+
+  private val requests = new ConcurrentHashMap[Int, Request]()
+  private val completed = new java.util.concurrent.ConcurrentLinkedDeque[Request]()
+  private val workers = new ConcurrentHashMap[String, Worker]()
+  private val roundTrips = new AtomicLongArray(bucketsMs.length)
+  private val completedCount = new AtomicLong()
+  private val totalUnits = new AtomicLong()
+  private val totalMs = new AtomicLong()
+  @volatile private var queued = 0L
+  @volatile private var inFlightChunks = 0L
+
+  def requestStarted(id: Int, units: Int): Unit = requests.put(id, new Request(id, units, System.currentTimeMillis))
+
+  def requestFinished(id: Int) = Option(requests.remove(id)).foreach { request =>
+    request.finished = System.currentTimeMillis
+    completedCount.incrementAndGet()
+    totalUnits.addAndGet(request.units)
+    totalMs.addAndGet(math.max(request.finished - request.started, 1))
+    completed.addFirst(request)
+    while(completed.size > history) completed.pollLast()
+  }
+
+  // with push dispatch all chunks are sent at once, so the round trip includes the time queued at the
+  // worker and is not used for its throughput (timed = false)
+  def chunkCompleted(worker: String, units: Int, roundTripMs: Long, timed: Boolean) = {
+    val w = Option(workers.get(worker)).getOrElse {
+      workers.putIfAbsent(worker, new Worker())
+      workers.get(worker)
+    }
+    w.units.addAndGet(units)
+    w.chunks.incrementAndGet()
+    if(timed) w.busyMs.addAndGet(math.max(roundTripMs, 1))
+    roundTrips.incrementAndGet(bucketsMs.indexWhere(roundTripMs <= _))
+  }
+
+  // units not yet handed out to workers and chunks waiting for a reply
+  def setQueue(queuedUnits: Long, chunksInFlight: Long) = {
+    queued = queuedUnits
+    inFlightChunks = chunksInFlight
+  }
+
+  private def rate(units: Long, ms: Long) = if(ms > 0) units * 1000.0 / ms else 0.0
+
+  private def bucketName(i: Int) = if(bucketsMs(i) == Long.MaxValue) s">${bucketsMs(i - 1)}" else s"<=${bucketsMs(i)}"
+
+  def getInFlightRequests = requests.size
+  def getQueueDepth = queued
+  def getChunksInFlight = inFlightChunks
+  def getCompletedRequests = completedCount.get
+  def getModPowsPerSecond = rate(totalUnits.get, totalMs.get)
+  def getWorkerModPowsPerSecond: java.util.Map[String, java.lang.Double] =
+    mapAsJavaMap(workers.toMap.map { case (k, w) => k -> java.lang.Double.valueOf(rate(w.units.get, w.busyMs.get)) })
+  def getChunkRoundTripMs: java.util.Map[String, java.lang.Long] =
+    mapAsJavaMap(bucketsMs.indices.map(i => bucketName(i) -> java.lang.Long.valueOf(roundTrips.get(i))).toMap)
+
+  def snapshot = {
+    val now = System.currentTimeMillis
+    val open = requests.values.toSeq.map { r =>
+      RequestMetrics(r.id, r.units, now - r.started, rate(r.units, now - r.started), false)
+    }
+    val done = completed.toSeq.map { r =>
+      RequestMetrics(r.id, r.units, r.finished - r.started, rate(r.units, r.finished - r.started), true)
+    }
+    val workerMetrics = workers.toSeq.map { case (k, w) =>
+      WorkerMetrics(k, w.units.get, w.chunks.get, rate(w.units.get, w.busyMs.get))
+    }
+    MetricsSnapshot(getInFlightRequests, getQueueDepth, getChunksInFlight, getCompletedRequests, totalUnits.get,
+      getModPowsPerSecond, getChunkRoundTripMs.toMap.mapValues(_.longValue), open ++ done, workerMetrics)
+  }
+
+  def registerMBean() = {
+    val server = ManagementFactory.getPlatformMBeanServer
+    val name = new ObjectName("mpservice:type=ModPowService")
+    if(!server.isRegistered(name)) server.registerMBean(this, name)
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import akka.serialization.Serializer
+import java.math.BigInteger
+import java.nio.ByteBuffer
+
+/**
+ * Binary serializer for the messages exchanged between ModPowServiceActor and WorkerActor
+ *
+ * Every message is written as a 20 byte header (request id, work id, item count, number of ints, limb
+ * width, 4 bytes each), the ints (base references and flags) and fixed width big endian two's complement
+ * values, the width being that of the largest value in the message. The common modulus is written once at the start,
+ * not per item. Secret exponent flags are packed as a bitset in the ints.
+ */
+class MPServiceSerializer extends Serializer {
+
+  def identifier = 7219
+
+  def includeManifest = true
+
+  def toBinary(obj: AnyRef): Array[Byte] = obj match {
+    case WorkFixedMod(requestId, workId, work, mod) =>
+      write(requestId, workId, work.length, Iterator(mod) ++ work.iterator.flatMap(w => Iterator(w.base, w.pow)), bits(work.map(_.secret)))
+    case WorkFixedModDebug(requestId, workId, work, mod) =>
+      write(requestId, workId, work.length, Iterator(mod) ++ work.iterator.flatMap(w => Iterator(w.base, w.pow)), bits(work.map(_.secret)))
+    case WorkProduct(requestId, workId, work, mod) =>
+      write(requestId, workId, work.length, Iterator(mod) ++ work.iterator.flatMap(w => Iterator(w.base, w.pow)), bits(work.map(_.secret)))
+    case WorkReply(requestId, workId, result) =>
+      write(requestId, workId, result.length, result.iterator)
+    case WorkReplyDebug(requestId, workId, result) =>
+      write(requestId, workId, result.length, result.iterator.flatMap(r => Iterator(r.base, r.pow, r.mod, r.result)))
+    case WorkReplyProduct(requestId, workId, result) =>
+      write(requestId, workId, 1, Iterator(result))
+    case WorkSession(requestId, mod, bases, fixedBases) =>
+      write(requestId, 0, bases.length, Iterator(mod) ++ bases.iterator, fixedBases)
+    case WorkCached(requestId, workId, baseRefs, inlineBases, pows, secret, debug) =>
+      write(requestId, workId, baseRefs.length, inlineBases.iterator ++ pows.iterator, (baseRefs ++ bits(secret)) :+ (if(debug) 1 else 0))
+    case _ => throw new IllegalArgumentException(s"cannot serialize ${obj.getClass}")
+  }
+
+  def fromBinary(bytes: Array[Byte], manifest: Option[Class[_]]): AnyRef = {
+    val buffer = ByteBuffer.wrap(bytes)
+    val requestId = buffer.getInt
+    val workId = buffer.getInt
+    val count = buffer.getInt
+    val intCount = buffer.getInt
+    val width = buffer.getInt
+    val ints = Array.fill(intCount)(buffer.getInt)
+    def next() = read(buffer, width)
+
+    manifest match {
+      case Some(c) if c == classOf[WorkFixedMod] =>
+        val mod = next()
+        val secret = unbits(ints, 0, count)
+        WorkFixedMod(requestId, workId, Array.tabulate(count)(i => ModPow2(next(), next(), secret(i))), mod)
+      case Some(c) if c == classOf[WorkFixedModDebug] =>
+        val mod = next()
+        val secret = unbits(ints, 0, count)
+        WorkFixedModDebug(requestId, workId, Array.tabulate(count)(i => ModPow2(next(), next(), secret(i))), mod)
+      case Some(c) if c == classOf[WorkProduct] =>
+        val mod = next()
+        val secret = unbits(ints, 0, count)
+        WorkProduct(requestId, workId, Array.tabulate(count)(i => ModPow2(next(), next(), secret(i))), mod)
+      case Some(c) if c == classOf[WorkReply] =>
+        WorkReply(requestId, workId, Array.fill(count)(next()))
+      case Some(c) if c == classOf[WorkReplyDebug] =>
+        WorkReplyDebug(requestId, workId, Array.fill(count)(ModPowResult(next(), next(), next(), next())))
+      case Some(c) if c == classOf[WorkReplyProduct] =>
+        WorkReplyProduct(requestId, workId, next())
+      case Some(c) if c == classOf[WorkSession] =>
+        val mod = next()
+        WorkSession(requestId, mod, Array.fill(count)(next()), ints)
+      case Some(c) if c == classOf[WorkCached] =>
+        val baseRefs = ints.take(count)
+        val inlineBases = Array.fill(baseRefs.count(_ < 0))(next())
+        WorkCached(requestId, workId, baseRefs, inlineBases, Array.fill(count)(next()), unbits(ints, count, count), ints.last == 1)
+      case _ => throw new IllegalArgumentException(s"cannot deserialize $manifest")
+    }
+  }
+
+  private def write(requestId: Int, workId: Int, count: Int, values: Iterator[BigInteger], ints: Array[Int] = Array()): Array[Byte] = {
+    val limbs = values.map(_.toByteArray).toArray
+    val width = if(limbs.isEmpty) 0 else limbs.map(_.length).max
+    val buffer = ByteBuffer.allocate(MPServiceSerializer.headerSize + 4 * ints.length + limbs.length * width)
+    buffer.putInt(requestId).putInt(workId).putInt(count).putInt(ints.length).putInt(width)
+    ints.foreach(i => buffer.putInt(i))
+    limbs.foreach { limb =>
+      // sign extend to the common width
+      val pad: Byte = if(limb(0) < 0) -1 else 0
+      var i = limb.length
+      while(i < width) {
+        buffer.put(pad)
+        i += 1
+      }
+      buffer.put(limb)
+    }
+
+    buffer.array
+  }
+
+  // one bit per flag, 32 per int
+  private def bits(flags: Array[Boolean]): Array[Int] = {
+    val words = new Array[Int]((flags.length + 31) / 32)
+    for(i <- flags.indices if flags(i)) words(i / 32) |= 1 << (i % 32)
+
+    words
+  }
+
+  private def unbits(ints: Array[Int], offset: Int, count: Int): Array[Boolean] =
+    Array.tabulate(count)(i => (ints(offset + i / 32) & (1 << (i % 32))) != 0)
+
+  private def read(buffer: ByteBuffer, width: Int): BigInteger = {
+    val limb = new Array[Byte](width)
+    buffer.get(limb)
+
+    new BigInteger(limb)
+  }
+}
+
+object MPServiceSerializer {
+  // request id, work id, item count, number of ints and limb width
+  val headerSize = 20
+}
@@ -0,0 +1,154 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package utils
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.ErrorCode
+import ch.bfh.unicrypt.UniCryptRuntimeException
+import ch.bfh.unicrypt.helper.array.classes.DenseArray
+import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractSet
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair
+import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
+import scala.collection.JavaConversions._
+
+/**
+ * ElGamal ciphertext (de)serialization
+ *
+ * unicrypt serializes a ciphertext as ["a"|"b"], with a and b the decimal values of its two group
+ * elements. AbstractSet.getElementFrom(String) disaggregates that into a Tree[String], converts each
+ * leaf and then checks membership one element at a time. Here the two numbers are read directly from
+ * the characters, and membership of all the components of a batch is checked at once (unless
+ * bypass-membership-check is set). Anything not in that format goes through Util.getE.
+ */
+object CiphertextCodec {
+  // votes per parallel task
+  val chunkSize = 1024
+
+  def encode(ciphertext: Element[_]): String = {
+    val pair = ciphertext.asInstanceOf[Pair]
+    val a = pair.getFirst.getValue.toString
+    val b = pair.getSecond.getValue.toString
+
+    new java.lang.StringBuilder(a.length + b.length + 7)
+      .append("[\"").append(a).append("\"|\"").append(b).append("\"]").toString
+  }
+
+  def encodeAll(ciphertexts: Tuple): Seq[String] = {
+    val elements = ciphertexts.toIndexedSeq
+    chunks(elements.length).flatMap { case (from, to) =>
+      (from until to).map(i => encode(elements(i)))
+    }.seq
+  }
+
+  /**
+   * Parses one ciphertext, without membership checks
+   */
+  def decode(space: ProductSet, value: CharSequence): Pair = {
+    groupOf(space).map { group =>
+      parse(value) match {
+        case Some((a, b)) => pair(space, group, a, b)
+        case None => Util.getE(space, value.toString).asInstanceOf[Pair]
+      }
+    }.getOrElse(Util.getE(space, value.toString).asInstanceOf[Pair])
+  }
+
+  /**
+   * Parses all the ciphertexts in parallel, checking that their components belong to the group
+   */
+  def decodeAll(space: ProductSet, values: Seq[String]): Seq[Pair] = {
+    groupOf(space).map { group =>
+      val input = values.toIndexedSeq
+      val parsed = chunks(input.length).flatMap { case (from, to) =>
+        (from until to).map(i => parse(input(i)))
+      }.seq
+      if(!Util.unsafe) {
+        val components = parsed.flatMap {
+          case Some((a, b)) => Seq(a, b)
+          case None => Seq()
+        }
+        if(!group.containsAll(components.toArray)) {
+          throw new UniCryptRuntimeException(ErrorCode.ELEMENT_CONSTRUCTION_FAILURE, space)
+        }
+      }
+      chunks(parsed.length).flatMap { case (from, to) =>
+        (from until to).map { i =>
+          parsed(i) match {
+            case Some((a, b)) => pair(space, group, a, b)
+            case None => Util.getE(space, input(i)).asInstanceOf[Pair]
+          }
+        }
+      }.seq
+    }.getOrElse(Util.getEs(space, values).map(_.asInstanceOf[Pair]))
+  }
+
+  // the encryption space is G x G
+  private[utils] def groupOf(space: ProductSet): Option[GStarMod] = {
+    if(space.getLength == 2 && space.isUniform) {
+      space.getFirst match {
+        case g: GStarMod => Some(g)
+        case _ => None
+      }
+    }
+    else {
+      None
+    }
+  }
+
+  private[utils] def pair(space: ProductSet, group: GStarMod, a: BigInteger, b: BigInteger): Pair = {
+    val elements = DenseArray.getInstance[Element[_]](group.getElement(a, true), group.getElement(b, true))
+    // the unsafe getElement(V, boolean) takes a DenseArray of raw Elements, which scala cannot infer
+    space.asInstanceOf[AbstractSet[_, DenseArray[Element[_]]]].getElement(elements, true).asInstanceOf[Pair]
+  }
+
+  private def chunks(n: Int) = (0 until n by chunkSize).map(from => (from, math.min(from + chunkSize, n))).par
+
+  // reads ["a"|"b"]
+  private[utils] def parse(value: CharSequence): Option[(BigInteger, BigInteger)] = {
+    val length = value.length
+    if(length < 9 || value.charAt(0) != '[' || value.charAt(1) != '"' ||
+      value.charAt(length - 2) != '"' || value.charAt(length - 1) != ']') {
+      None
+    }
+    else {
+      val aEnd = digits(value, 2)
+      if(aEnd + 3 > length - 2 || value.charAt(aEnd) != '"' || value.charAt(aEnd + 1) != '|' || value.charAt(aEnd + 2) != '"') {
+        None
+      }
+      else {
+        val bEnd = digits(value, aEnd + 3)
+        if(aEnd == 2 || bEnd == aEnd + 3 || bEnd != length - 2) {
+          None
+        }
+        else {
+          Some((new BigInteger(value.subSequence(2, aEnd).toString), new BigInteger(value.subSequence(aEnd + 3, bEnd).toString)))
+        }
+      }
+    }
+  }
+
+  // index of the first non digit at or after from
+  private def digits(value: CharSequence, from: Int) = {
+    var i = from
+    while(i < value.length && value.charAt(i) >= '0' && value.charAt(i) <= '9') i += 1
+
+    i
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package utils
+
+import java.math.BigInteger
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicInteger
+import ch.bfh.unicrypt.ErrorCode
+import ch.bfh.unicrypt.UniCryptRuntimeException
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair
+import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
+
+/**
+ * Immutable, compact storage for the ElGamal ciphertexts of an election
+ *
+ * Each ciphertext is stored as its two components, big endian and padded to the byte length of the
+ * modulus (512 bytes per vote at 2048 bits), in array backed segments. As decimal strings in a
+ * List[String] a vote takes several times that. Components are checked for group membership once,
+ * when the store is built, so conversion to unicrypt elements (done on demand, in parallel) needs no
+ * further checks. Prepending shares the existing segments, so the Votes states in the election history
+ * do not copy each other's ciphertexts. Votes prepended a few at a time (addVote) go into the free space in
+ * front of the first segment, so segments still fill up to segmentSize votes. A segment is only written in
+ * space that no store has used yet, and each store only reads its own range, so stores stay immutable.
+ */
+class CiphertextStore private (val width: Int, private val segments: Vector[CiphertextStore.Segment], val size: Int) {
+  // index of the first ciphertext of each segment, lazy so that building a store vote by vote is linear
+  private lazy val offsets = segments.scanLeft(0)(_ + _.count).toArray
+
+  def isEmpty = size == 0
+
+  // same order as votes ::: previous
+  def :::(prefix: CiphertextStore): CiphertextStore = {
+    if(prefix.isEmpty) this
+    else if(isEmpty) prefix
+    else {
+      if(prefix.width != width) throw new IllegalArgumentException(s"width mismatch ${prefix.width} != $width")
+      segments.head.prepend(prefix, width) match {
+        case Some(head) => new CiphertextStore(width, head +: segments.tail, prefix.size + size)
+        case None => new CiphertextStore(width, prefix.segments ++: segments, prefix.size + size)
+      }
+    }
+  }
+
+  // copies the fixed width ciphertexts to data, from the given byte offset
+  private def copyTo(data: Array[Byte], offset: Int) = {
+    var next = offset
+    segments.foreach { segment =>
+      val bytes = segment.count * 2 * width
+      System.arraycopy(segment.buffer.data, segment.from * 2 * width, data, next, bytes)
+      next += bytes
+    }
+  }
+
+  def apply(index: Int): (BigInteger, BigInteger) = {
+    if(index < 0 || index >= size) throw new IndexOutOfBoundsException(index.toString)
+    val s = Arrays.binarySearch(offsets, index) match {
+      case found if found >= 0 => found
+      case insertion => -insertion - 2
+    }
+    segments(s).get(index - offsets(s), width)
+  }
+
+  /**
+   * The ciphertext at the given index as an element of the encryption space
+   */
+  def element(index: Int, space: ProductSet): Pair = {
+    val (a, b) = apply(index)
+    CiphertextCodec.pair(space, group(space), a, b)
+  }
+
+  /**
+   * All ciphertexts as elements of the encryption space, converted in parallel
+   */
+  def elements(space: ProductSet): Seq[Pair] = {
+    val g = group(space)
+    segments.par.flatMap { segment =>
+      (0 until segment.count).map { i =>
+        val (a, b) = segment.get(i, width)
+        CiphertextCodec.pair(space, g, a, b)
+      }
+    }.seq
+  }
+
+  private def group(space: ProductSet) = CiphertextCodec.groupOf(space).getOrElse {
+    throw new IllegalArgumentException(s"not an ElGamal encryption space: $space")
+  }
+
+  override def toString = s"CiphertextStore($size ciphertexts, ${size.toLong * 2 * width} bytes)"
+}
+
+object CiphertextStore {
+  // ciphertexts per segment, bounds the size of each array and is the unit of parallelism
+  val segmentSize = 1 << 14
+
+  val empty = new CiphertextStore(0, Vector(), 0)
+
+  // the ciphertexts from index written on are used by some store, those in front of it are free
+  private[utils] class Buffer(val data: Array[Byte], low: Int) {
+    val written = new AtomicInteger(low)
+  }
+
+  // the ciphertexts [from, from + count) of a buffer
+  private[utils] class Segment(val buffer: Buffer, val from: Int, val count: Int) {
+    def get(i: Int, width: Int): (BigInteger, BigInteger) = {
+      val offset = (from + i) * 2 * width
+      (new BigInteger(1, Arrays.copyOfRange(buffer.data, offset, offset + width)),
+        new BigInteger(1, Arrays.copyOfRange(buffer.data, offset + width, offset + 2 * width)))
+    }
+
+    /**
+     * This segment with the prefix's ciphertexts in front, None if it would exceed segmentSize
+     *
+     * The prefix is written in place if the space in front of this segment is free. If another store already
+     * used it, or there is not enough, the segment is copied to a buffer of twice the size, so that filling
+     * a segment vote by vote copies each vote a constant number of times on average.
+     */
+    def prepend(prefix: CiphertextStore, width: Int): Option[Segment] = {
+      val k = prefix.size
+      if(count + k > segmentSize) {
+        None
+      }
+      else if(from >= k && buffer.written.compareAndSet(from, from - k)) {
+        prefix.copyTo(buffer.data, (from - k) * 2 * width)
+        Some(new Segment(buffer, from - k, count + k))
+      }
+      else {
+        val capacity = math.min(segmentSize, math.max(2 * (count + k), 16))
+        val start = capacity - count - k
+        val grown = new Buffer(new Array[Byte](capacity * 2 * width), start)
+        prefix.copyTo(grown.data, start * 2 * width)
+        System.arraycopy(buffer.data, from * 2 * width, grown.data, (start + k) * 2 * width, count * 2 * width)
+        Some(new Segment(grown, start, count + k))
+      }
+    }
+  }
+
+  /**
+   * Builds a store from serialized ciphertexts, checking that they belong to the group
+   *
+   * Throws if any ciphertext is not in the ["a"|"b"] format, also with bypass-membership-check set (which
+   * only skips the membership check), as there is no Util.getE fallback for a store.
+   */
+  def apply(votes: Seq[String], group: GStarMod): CiphertextStore = {
+    val parsed = votes.par.map { v =>
+      CiphertextCodec.parse(v).getOrElse(throw new UniCryptRuntimeException(ErrorCode.ELEMENT_CONSTRUCTION_FAILURE, group, v))
+    }.seq
+    check(parsed, group)
+
+    build(parsed, group)
+  }
+
+  private def check(values: Seq[(BigInteger, BigInteger)], group: GStarMod) = {
+    if(!Util.unsafe) {
+      val components = new Array[BigInteger](values.size * 2)
+      values.zipWithIndex.foreach { case ((a, b), i) =>
+        components(2 * i) = a
+        components(2 * i + 1) = b
+      }
+      if(!group.containsAll(components)) {
+        throw new UniCryptRuntimeException(ErrorCode.ELEMENT_CONSTRUCTION_FAILURE, group)
+      }
+    }
+  }
+
+  private def build(values: Seq[(BigInteger, BigInteger)], group: GStarMod): CiphertextStore = {
+    if(values.isEmpty) empty
+    else {
+      val width = (group.getModulus.bitLength + 7) / 8
+      val input = values.toIndexedSeq
+      val segments = (0 until input.size by segmentSize).par.map { from =>
+        val count = math.min(segmentSize, input.size - from)
+        val data = new Array[Byte](count * 2 * width)
+        for(i <- 0 until count) {
+          val (a, b) = input(from + i)
+          put(a, data, i * 2 * width, width)
+          put(b, data, i * 2 * width + width, width)
+        }
+        new Segment(new Buffer(data, 0), 0, count)
+      }.seq.toVector
+
+      new CiphertextStore(width, segments, input.size)
+    }
+  }
+
+  // right aligned, toByteArray may have a leading sign byte
+  private def put(value: BigInteger, data: Array[Byte], offset: Int, width: Int) = {
+    if(value.signum < 0 || value.bitLength > width * 8) throw new IllegalArgumentException("value out of range")
+    val bytes = value.toByteArray
+    val length = math.min(bytes.length, width)
+    System.arraycopy(bytes, bytes.length - length, data, offset + width - length, length)
+  }
+}
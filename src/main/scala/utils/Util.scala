@@ -24,6 +24,10 @@ import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
 import ch.bfh.unicrypt.crypto.encoder.classes.ZModPrimeToGStarModSafePrime
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
+import ch.bfh.unicrypt.ErrorCode
+import ch.bfh.unicrypt.UniCryptRuntimeException
+import java.math.BigInteger
 import com.typesafe.config.ConfigFactory
 import scala.collection.JavaConversions._
 import models._
@@ -56,12 +60,17 @@ object Util {
   def encryptVotes(plaintexts: Seq[Int], cSettings: CryptoSettings, publicKey: Element[_]) = {
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
     val encoder = ZModPrimeToGStarModSafePrime.getInstance(cSettings.group)
-
-    plaintexts.par.map { p =>
-      val message = encoder.getDomain().getElementFrom(p)
-      val encodedMessage = encoder.encode(message)
-      elGamal.encrypt(publicKey, encodedMessage)
-    }.seq
+    GStarMod.registerFixedBase(publicKey)
+
+    try {
+      plaintexts.par.map { p =>
+        val message = encoder.getDomain().getElementFrom(p)
+        val encodedMessage = encoder.encode(message)
+        elGamal.encrypt(publicKey, encodedMessage)
+      }.seq
+    } finally {
+      GStarMod.unregisterFixedBase(publicKey)
+    }
   }
 
   def getPublicKeyFromString(publicKey: String, generator: Element[_]) = {
@@ -100,4 +109,30 @@ object Util {
       set.asInstanceOf[AbstractSet[_, _]].getElementFrom(value)
     }
   }
-}
\ No newline at end of file
+
+  // parses all the values without membership checks, and then checks the group components of all of them
+  // at once (in parallel, see GStarMod.containsAll)
+  def getEs(set: AbstractSet[_, _], values: Seq[String]): Seq[Element[_]] = {
+    val elements = values.par.map(v => set.getElementFromString(v, true).asInstanceOf[Element[_]]).seq
+    if(!unsafe) {
+      val components = elements.flatMap(atoms)
+      components.groupBy(_.getSet).foreach {
+        case (group: GStarMod, es) =>
+          if(!group.containsAll(es.map(_.getValue.asInstanceOf[BigInteger]).toArray)) {
+            throw new UniCryptRuntimeException(ErrorCode.ELEMENT_CONSTRUCTION_FAILURE, set)
+          }
+        case (other, es) =>
+          es.par.find(e => !other.contains(e)).foreach { e =>
+            throw new UniCryptRuntimeException(ErrorCode.ELEMENT_CONSTRUCTION_FAILURE, other, e.getValue.asInstanceOf[AnyRef])
+          }
+      }
+    }
+
+    elements
+  }
+
+  private def atoms(element: Element[_]): Seq[Element[_]] = element match {
+    case t: Tuple => t.toSeq.flatMap(atoms)
+    case e => Seq(e)
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import models.CryptoSettings
+import mpservice.FixedBaseModPow
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that releasing a context leaves the fixed-base tables other contexts still use
+ */
+class CryptoContextSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val settings = CryptoSettings(group, group.getDefaultGenerator)
+
+  "CryptoContext.release" should "keep a public key table registered by another context" in {
+    val first = CryptoContext("crypto-context-spec-1", settings)
+    val second = CryptoContext("crypto-context-spec-2", settings)
+    val key = first.keyPairGenerator.generateKeyPair.getSecond.convertToString
+    val value = first.publicKey(key).getValue.asInstanceOf[BigInteger]
+    // parsed once per context, so a single registration each
+    first.publicKey(key)
+    second.publicKey(key)
+
+    CryptoContext.remove(first.id)
+    FixedBaseModPow.isRegistered(value, group.getModulus) should be (true)
+    CryptoContext.remove(second.id)
+    FixedBaseModPow.isRegistered(value, group.getModulus) should be (false)
+  }
+}
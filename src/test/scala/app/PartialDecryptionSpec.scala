@@ -0,0 +1,121 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.crypto.proofsystem.classes.EqualityPreimageProofSystem
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import ch.bfh.unicrypt.math.function.classes.CompositeFunction
+import ch.bfh.unicrypt.math.function.classes.GeneratorFunction
+import ch.bfh.unicrypt.math.function.classes.InvertFunction
+import ch.bfh.unicrypt.math.function.classes.MultiIdentityFunction
+import ch.bfh.unicrypt.math.function.classes.ProductFunction
+import ch.bfh.unicrypt.math.function.interfaces.Function
+import models.SigmaProofDTO
+import models.CryptoSettings
+import models.PartialDecryptionDTO
+import utils.Util
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the batched partial decryption verifier against the per vote one, on valid and tampered proofs
+ */
+class PartialDecryptionSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val ctx = CryptoContext("partial-decryption-spec", CryptoSettings(group, group.getDefaultGenerator))
+  val electionKey = ctx.keyPairGenerator.generateKeyPair.getSecond
+  val votes: Seq[Tuple] = Util.getRandomVotes(10, ctx.generator, electionKey)
+
+  // the trustee's key share
+  val keyPair = ctx.keyPairGenerator.generateKeyPair
+  val privateKey = keyPair.getFirst
+  val publicKey = keyPair.getSecond
+
+  object KM extends KeyMaker
+
+  val pd = KM.partialDecrypt(votes, privateKey, "0", ctx)
+
+  def verify(pd: PartialDecryptionDTO, batched: Boolean) =
+    Verifier.verifyPartialDecryption(pd, votes, ctx, "0", publicKey, batched)
+
+  // multiplies the i-th partial decryption by g^k, which keeps it in the group
+  def shifted(pd: PartialDecryptionDTO, i: Int, k: Int): PartialDecryptionDTO = {
+    val d = group.getElementFrom(pd.partialDecryptions(i))
+    val moved: Element[_] = d.apply(ctx.generator.selfApply(BigInteger.valueOf(k).mod(group.getOrder)))
+    pd.copy(partialDecryptions = pd.partialDecryptions.updated(i, moved.convertToString))
+  }
+
+  /**
+   * A proof made with the private key for partial decryptions that are not all correct
+   *
+   * The prover runs the sigma protocol honestly on the false statement, so the challenge matches the
+   * tampered values and each wrong vote equation is off by d'_i / d_i to the power of the challenge.
+   */
+  def cheatingProof(pd: PartialDecryptionDTO): PartialDecryptionDTO = {
+    val generators = votes.map(v => GeneratorFunction.getInstance(v.getFirst))
+    val f1: Function = GeneratorFunction.getInstance(ctx.generator)
+    val f2: Function = CompositeFunction.getInstance(
+      InvertFunction.getInstance(ctx.zModOrder),
+      MultiIdentityFunction.getInstance(ctx.zModOrder, generators.length),
+      ProductFunction.getInstance(generators: _*))
+    val proofSystem = EqualityPreimageProofSystem.getInstance(ctx.challengeGenerator("0"), f1, f2)
+    val ds = pd.partialDecryptions.map(group.getElementFrom(_): Element[_])
+    val secretKey = ctx.zModOrder.getElementFrom(privateKey.convertToBigInteger)
+    val proof = proofSystem.generate(secretKey, Pair.getInstance(publicKey, Tuple.getInstance(ds: _*)))
+
+    pd.copy(proofDTO = SigmaProofDTO(proofSystem.getCommitment(proof).convertToString,
+      proofSystem.getChallenge(proof).convertToString, proofSystem.getResponse(proof).convertToString))
+  }
+
+  for(batched <- Seq(true, false)) {
+    val name = if(batched) "The batched verifier" else "The per vote verifier"
+
+    name should "accept a valid proof" in {
+      verify(pd, batched) should be (true)
+    }
+
+    it should "reject a replaced partial decryption" in {
+      verify(shifted(pd, 3, 1), batched) should be (false)
+    }
+
+    it should "accept the cheating prover's proof for correct partial decryptions" in {
+      verify(cheatingProof(pd), batched) should be (true)
+    }
+
+    it should "reject a proof made for a replaced partial decryption" in {
+      verify(cheatingProof(shifted(pd, 3, 1)), batched) should be (false)
+    }
+
+    it should "reject a proof made for two partial decryptions that are off by inverse factors" in {
+      // the errors cancel out in the plain product, only independent batching exponents catch them
+      verify(cheatingProof(shifted(shifted(pd, 1, 1), 2, -1)), batched) should be (false)
+    }
+
+    it should "reject a tampered response" in {
+      val response = new BigInteger(pd.proofDTO.response).add(BigInteger.ONE).mod(group.getOrder)
+      verify(pd.copy(proofDTO = pd.proofDTO.copy(response = response.toString)), batched) should be (false)
+    }
+
+    it should "reject a proof for another prover" in {
+      Verifier.verifyPartialDecryption(pd, votes, ctx, "1", publicKey, batched) should be (false)
+    }
+  }
+}
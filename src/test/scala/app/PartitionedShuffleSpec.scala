@@ -0,0 +1,83 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import models.CryptoSettings
+import models.PartitionedShuffleDTO
+import models.ShuffleResultDTO
+import utils.CiphertextCodec
+import utils.Util
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that the verifier binds every part of a partitioned shuffle (see PartitionedShuffle)
+ */
+class PartitionedShuffleSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val ctx = CryptoContext("partitioned-shuffle-spec", CryptoSettings(group, group.getDefaultGenerator))
+  val publicKey = ctx.publicKey(ctx.keyPairGenerator.generateKeyPair.getSecond.convertToString)
+  val votes = Util.getRandomVotes(8, ctx.generator, publicKey)
+
+  object MX extends Mixer
+
+  def shuffle(batches: Int, rounds: Int) = MX.shufflePartitioned(votes, publicKey, ctx, "0", batches, rounds)
+
+  def verify(result: ShuffleResultDTO, partitioned: PartitionedShuffleDTO) = {
+    val shuffled = CiphertextCodec.decodeAll(ctx.encryptionSpace, result.votes)
+    Verifier.verifyPartitionedShuffle(votes, shuffled, partitioned, "0", publicKey, ctx)
+  }
+
+  lazy val honest = shuffle(2, 2)
+
+  "A partitioned shuffle" should "verify" in {
+    honest.partitioned.get.proofs.map(_.size) should be (Seq(2, 2))
+    verify(honest, honest.partitioned.get) should be (true)
+  }
+
+  it should "not verify with swapped intermediate votes" in {
+    val partitioned = honest.partitioned.get
+    // positions 0 and 1 belong to different batches of the second round
+    val round = partitioned.intermediateVotes.head.toIndexedSeq
+    val swapped = round.updated(0, round(1)).updated(1, round(0))
+    verify(honest, partitioned.copy(intermediateVotes = Seq(swapped))) should be (false)
+  }
+
+  it should "not verify with swapped batch proofs" in {
+    val partitioned = honest.partitioned.get
+    // each proof is valid, but for the prover id of the other batch
+    val proofs = partitioned.proofs.updated(0, partitioned.proofs.head.reverse)
+    verify(honest, partitioned.copy(proofs = proofs)) should be (false)
+  }
+
+  it should "not verify with fewer than the minimum rounds" in {
+    val result = shuffle(2, 1)
+    verify(result, result.partitioned.get) should be (false)
+  }
+
+  it should "not verify with a single batch" in {
+    val result = shuffle(1, 2)
+    verify(result, result.partitioned.get) should be (false)
+  }
+
+  it should "not verify with more batches than the votes allow" in {
+    // 8 votes need at most 2 batches for every batch of a round to reach all those of the next
+    val result = shuffle(3, 2)
+    verify(result, result.partitioned.get) should be (false)
+  }
+}
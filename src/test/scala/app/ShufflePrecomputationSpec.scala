@@ -0,0 +1,69 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package app
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import models.CryptoSettings
+import models.PermutationProofDTO
+import scala.concurrent.Await
+import scala.concurrent.Future
+import scala.concurrent.duration._
+import utils.CiphertextCodec
+import utils.Util
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that the offline phase of a shuffle (see Mixer.preShuffle) is used for one shuffle only
+ */
+class ShufflePrecomputationSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val ctx = CryptoContext("shuffle-precomputation-spec", CryptoSettings(group, group.getDefaultGenerator))
+  val publicKey = ctx.publicKey(ctx.keyPairGenerator.generateKeyPair.getSecond.convertToString)
+  val votes = Util.getRandomVotes(8, ctx.generator, publicKey)
+
+  object MX extends Mixer
+
+  def preShuffle() = MX.preShuffle(votes.size, publicKey, ctx, "0")
+
+  def shuffle(pre: PreShuffleData, pdto: Future[PermutationProofDTO]) =
+    Await.result(MX.shuffle(Util.tupleFromSeq(votes), publicKey, ctx, "0", pre, pdto), 60.seconds)
+
+  "A precomputed shuffle" should "verify" in {
+    val (pre, pdto) = preShuffle()
+    val result = shuffle(pre, pdto)
+    val shuffled = CiphertextCodec.decodeAll(ctx.encryptionSpace, result.votes)
+
+    Verifier.verifyShuffle(Util.tupleFromSeq(votes), Util.tupleFromSeq(shuffled), result.shuffleProof.get, "0",
+      publicKey, ctx) should be (true)
+  }
+
+  it should "not run twice with the same precomputation" in {
+    val (pre, pdto) = preShuffle()
+    shuffle(pre, pdto)
+    an [IllegalStateException] should be thrownBy shuffle(pre, pdto)
+  }
+
+  it should "not reuse a shuffle proof commitment precomputation" in {
+    val (used, pdto) = preShuffle()
+    shuffle(used, pdto)
+    // fresh re-encryption factors, only the proof's (r', w', e') is reused
+    val (fresh, _) = preShuffle()
+    val reused = fresh.copy(shuffleProofSystem = used.shuffleProofSystem, shuffleProofCommitment = used.shuffleProofCommitment)
+    an [IllegalStateException] should be thrownBy shuffle(reused, pdto)
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package ch.bfh.unicrypt.crypto.mixer.abstracts
+
+import app.CryptoContext
+import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import models.CryptoSettings
+import utils.Util
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the shuffle with precomputed re-encryption factors against the plain shuffle
+ */
+class ReEncryptionFactorsSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val ctx = CryptoContext("re-encryption-factors-spec", CryptoSettings(group, group.getDefaultGenerator))
+  val publicKey = ctx.publicKey(ctx.keyPairGenerator.generateKeyPair.getSecond.convertToString)
+  val votes = Util.tupleFromSeq(Util.getRandomVotes(10, ctx.generator, publicKey))
+
+  def mixer() = ReEncryptionMixer.getInstance(ctx.elGamal, publicKey, votes.getArity)
+
+  "A shuffle with precomputed factors" should "equal the plain shuffle with the same randomizations" in {
+    val m = mixer()
+    val factors = m.precomputeReEncryptions()
+    val permutation = m.getPermutationGroup.getRandomElement
+
+    val plain = m.shuffle(votes, permutation, factors.getRandomizations)
+    m.shuffle(votes, permutation, factors) should be (plain)
+
+    // and both equal unicrypt's own re-encryption
+    val r = factors.getRandomizations
+    val reEncrypted = (0 until votes.getArity).map(i => ctx.elGamal.reEncrypt(publicKey, votes.getAt(i), r.getAt(i)))
+    plain should be (m.getPermutationFunction.apply(Util.tupleFromSeq(reEncrypted), permutation))
+  }
+
+  it should "not run twice with the same factors" in {
+    val m = mixer()
+    val factors = m.precomputeReEncryptions()
+    m.shuffle(votes, m.getPermutationGroup.getRandomElement, factors)
+    an [IllegalStateException] should be thrownBy m.shuffle(votes, m.getPermutationGroup.getRandomElement, factors)
+  }
+
+  it should "only use factors precomputed by the same mixer" in {
+    val factors = mixer().precomputeReEncryptions()
+    val other = mixer()
+    an [IllegalArgumentException] should be thrownBy other.shuffle(votes, other.getPermutationGroup.getRandomElement, factors)
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package ch.bfh.unicrypt.crypto.proofsystem.classes
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZMod
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the closed form permutation commitment chain against the sequential loop it replaces
+ */
+class CommitmentChainSpec extends FlatSpec with Matchers {
+
+  def chain(group: GStarModSafePrime, g: Element[_], h: Element[_], rV: Tuple, ePrimeV: Tuple, closedForm: Boolean) = {
+    val cs = new Array[Element[_]](rV.getArity)
+    val ds = new Array[Element[_]](rV.getArity)
+    PermutationCommitmentProofSystem.commitmentChain(group, g, h, rV, ePrimeV, cs, ds, closedForm)
+
+    (cs.toSeq, ds.toSeq)
+  }
+
+  "commitmentChain" should "compute the same commitments in closed form and sequentially" in {
+    for(bits <- Seq(64, 256); n <- Seq(1, 2, 17); eBits <- Seq(60, bits + 10)) {
+      val group = GStarModSafePrime.getFirstInstance(bits)
+      val g = group.getRandomElement
+      val h = group.getRandomElement
+      val rV = Tuple.getInstance(Seq.fill(n)(group.getZModOrder.getRandomElement): _*)
+      // the challenges e' may be larger than the group order
+      val eSpace = ZMod.getInstance(BigInteger.ONE.shiftLeft(eBits))
+      val ePrimeV = Tuple.getInstance(Seq.fill(n)(eSpace.getRandomElement): _*)
+
+      val (csClosed, dsClosed) = chain(group, g, h, rV, ePrimeV, true)
+      val (csLoop, dsLoop) = chain(group, g, h, rV, ePrimeV, false)
+      csClosed.zip(csLoop).foreach { case (a, b) => a.isEquivalent(b) should be (true) }
+      dsClosed.zip(dsLoop).foreach { case (a, b) => a.isEquivalent(b) should be (true) }
+    }
+  }
+}
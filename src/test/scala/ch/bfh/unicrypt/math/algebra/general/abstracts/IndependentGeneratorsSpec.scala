@@ -0,0 +1,74 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package ch.bfh.unicrypt.math.algebra.general.abstracts
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.Arrays
+import ch.bfh.unicrypt.helper.array.classes.ByteArray
+import ch.bfh.unicrypt.helper.random.deterministic.CTR_DRBG
+import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteSequence
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that the hash derived generators (generators-derivation=hash) depend only on their index
+ */
+class IndependentGeneratorsSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(128)
+
+  // generator i recomputed from its definition, the first generator of a CTR_DRBG seeded with SHA-256(domain || i)
+  def expected(index: Int) = {
+    val factory = CTR_DRBG.getFactory
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update("agora-mixnet independent generators".getBytes(StandardCharsets.UTF_8))
+    val hash = digest.digest(ByteBuffer.allocate(4).putInt(index).array)
+    val seed = ByteArray.getInstance(Arrays.copyOf(hash, factory.getSeedByteLength): _*)
+
+    group.getIndependentGenerators(DeterministicRandomByteSequence.getInstance(factory, seed)).get
+  }
+
+  def generators(skip: Int, size: Int) = {
+    val array = group.getIndependentGeneratorsP(skip, size)
+    (0 until size).map(array.getAt(_))
+  }
+
+  "The derived generators" should "be the hash derivation of their index" in {
+    AbstractCyclicGroup.isHashDerivation should be (true)
+    // a range not starting at 0 first, so that it does not depend on the earlier ones being cached
+    val later = generators(20, 5)
+    later should be ((20 until 25).map(expected))
+    generators(0, 25) should be ((0 until 25).map(expected))
+  }
+
+  it should "not depend on how they are requested" in {
+    val all = generators(0, 40)
+    generators(10, 30) should be (all.drop(10))
+    (0 until 40 by 7).foreach { i =>
+      group.getIndependentGeneratorP(i) should be (all(i))
+    }
+  }
+
+  it should "be distinct generators of the group" in {
+    val all = generators(0, 40)
+    all.distinct.size should be (40)
+    all.forall(g => group.isGenerator(g)) should be (true)
+    all.contains(group.getDefaultGenerator) should be (false)
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.Random
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the fixed-base tables against BigInteger.modPow, and their least recently used eviction
+ */
+class FixedBaseModPowSpec extends FlatSpec with Matchers {
+  val random = new Random(1)
+  val maxTables = ConfigFactory.load().getInt("mpservice.fixed-base-max-tables")
+  val mod = GStarModSafePrime.getFirstInstance(512).getModulus
+
+  def base() = new BigInteger(mod.bitLength - 1, random)
+
+  "FixedBaseModPow" should "equal BigInteger.modPow for a registered base" in {
+    val b = base()
+    FixedBaseModPow.register(b, mod) should be (true)
+    FixedBaseModPow.register(b, mod) should be (false)
+
+    val pows = Seq(BigInteger.ZERO, BigInteger.ONE, mod.subtract(BigInteger.ONE)) ++
+      (1 to 50).map(i => new BigInteger(random.nextInt(mod.bitLength) + 1, random))
+    pows.foreach { pow =>
+      FixedBaseModPow.modPow(b, pow, mod) should be (b.modPow(pow, mod))
+    }
+    FixedBaseModPow.unregister(b, mod)
+  }
+
+  it should "not compute exponents the table does not cover" in {
+    val b = base()
+    FixedBaseModPow.register(b, mod, 64)
+    FixedBaseModPow.modPow(b, new BigInteger(64, random).setBit(63), mod) should not be (null)
+    FixedBaseModPow.modPow(b, BigInteger.ONE.shiftLeft(64), mod) should be (null)
+    FixedBaseModPow.modPow(b, BigInteger.ONE.negate, mod) should be (null)
+    FixedBaseModPow.modPow(base(), BigInteger.ONE, mod) should be (null)
+
+    // a wider table replaces the narrower one
+    FixedBaseModPow.register(b, mod, 128) should be (true)
+    val pow = new BigInteger(128, random)
+    FixedBaseModPow.modPow(b, pow, mod) should be (b.modPow(pow, mod))
+    FixedBaseModPow.unregister(b, mod)
+  }
+
+  it should "keep a table until every registration is released" in {
+    val b = base()
+    FixedBaseModPow.register(b, mod) should be (true)
+    FixedBaseModPow.register(b, mod) should be (false)
+    FixedBaseModPow.unregister(b, mod)
+    FixedBaseModPow.isRegistered(b, mod) should be (true)
+    FixedBaseModPow.unregister(b, mod)
+    FixedBaseModPow.isRegistered(b, mod) should be (false)
+    // nothing left to release
+    FixedBaseModPow.unregister(b, mod)
+    FixedBaseModPow.register(b, mod) should be (true)
+    FixedBaseModPow.unregister(b, mod)
+    FixedBaseModPow.isRegistered(b, mod) should be (false)
+  }
+
+  it should "evict the least recently used table when full" in {
+    // tables registered by other specs would be evicted first
+    FixedBaseModPow.clear()
+    val used = base()
+    val bases = (1 to maxTables).map(_ => base())
+    FixedBaseModPow.register(used, mod)
+    bases.foreach { b =>
+      FixedBaseModPow.register(b, mod)
+      FixedBaseModPow.modPow(used, BigInteger.ONE, mod)
+    }
+    FixedBaseModPow.isRegistered(used, mod) should be (true)
+    FixedBaseModPow.isRegistered(bases.head, mod) should be (false)
+    bases.tail.forall(FixedBaseModPow.isRegistered(_, mod)) should be (true)
+
+    (used +: bases).foreach(FixedBaseModPow.unregister(_, mod))
+  }
+}
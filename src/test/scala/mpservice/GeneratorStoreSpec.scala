@@ -0,0 +1,73 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.Random
+import java.util.concurrent.Executors
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext
+import scala.concurrent.Future
+import scala.concurrent.duration._
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that stored generators read back, also with readers and writers of the same file in this process
+ */
+class GeneratorStoreSpec extends FlatSpec with Matchers {
+  val random = new Random(1)
+  // not a real group, the store does not check membership
+  val modulus = new BigInteger(128, random).setBit(127)
+  val values = Array.fill(5000)(new BigInteger(127, random))
+
+  "GeneratorStore" should "read back the stored generators" in {
+    GeneratorStore.isEnabled should be (true)
+    GeneratorStore.discard(modulus, "generator-store-spec")
+    GeneratorStore.store(modulus, "generator-store-spec", values.take(50))
+    GeneratorStore.load(modulus, "generator-store-spec", 5000).toSeq should be (values.take(50).toSeq)
+    GeneratorStore.store(modulus, "generator-store-spec", values)
+    GeneratorStore.load(modulus, "generator-store-spec", 120).toSeq should be (values.take(120).toSeq)
+    GeneratorStore.load(modulus, "another-derivation", 10) should be (empty)
+  }
+
+  it should "let threads of one process read while others rewrite the file" in {
+    // more threads than cores, whatever the machine
+    val pool = Executors.newFixedThreadPool(8)
+    implicit val ec = ExecutionContext.fromExecutorService(pool)
+    val tasks = (1 to 400).map { i =>
+      Future {
+        if(i % 4 == 0) {
+          GeneratorStore.discard(modulus, "generator-store-spec")
+          GeneratorStore.store(modulus, "generator-store-spec", values)
+          values.toSeq
+        }
+        else {
+          // whatever the state of the file, a read returns a prefix
+          GeneratorStore.load(modulus, "generator-store-spec", 5000).toSeq
+        }
+      }
+    }
+    try {
+      Await.result(Future.sequence(tasks), 120.seconds).foreach { read =>
+        read should be (values.take(read.size).toSeq)
+      }
+    } finally {
+      pool.shutdown()
+    }
+  }
+}
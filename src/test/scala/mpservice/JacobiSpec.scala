@@ -0,0 +1,110 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.Random
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the Jacobi symbol membership test against the modPow (Euler criterion) reference
+ */
+class JacobiSpec extends FlatSpec with Matchers {
+  val random = new Random(1)
+  val groups = Seq(16, 64, 127, 512, 2048).map(GStarModSafePrime.getFirstInstance)
+
+  // a in G_q iff 0 < a < p and a^q = 1 mod p
+  def reference(group: GStarModSafePrime, a: BigInteger) = {
+    val p = group.getModulus
+    a.signum > 0 && a.compareTo(p) < 0 && a.modPow(group.getOrder, p) == BigInteger.ONE
+  }
+
+  def candidates(group: GStarModSafePrime) = {
+    val p = group.getModulus
+    val members = (1 to 50).map(_ => group.getRandomElement.getValue)
+    val others = (1 to 100).map(_ => new BigInteger(p.bitLength + 1, random))
+    val edges = Seq(BigInteger.ZERO, BigInteger.ONE, p.subtract(BigInteger.ONE), p, p.add(BigInteger.ONE),
+      p.add(members.head), BigInteger.valueOf(-4), members.head.negate)
+
+    members ++ others ++ edges
+  }
+
+  "Jacobi.symbol" should "match the Legendre symbol modulo a safe prime" in {
+    groups.foreach { group =>
+      val p = group.getModulus
+      val limbs = Jacobi.limbs(p)
+      candidates(group).filter(_.signum >= 0).foreach { a =>
+        val m = a.mod(p)
+        val legendre = if(m.signum == 0) 0 else if(m.modPow(group.getOrder, p) == BigInteger.ONE) 1 else -1
+        Jacobi.symbol(a, p) should be (legendre)
+        Jacobi.symbol(a, limbs) should be (legendre)
+      }
+    }
+  }
+
+  it should "match the definition for odd composite moduli" in {
+    // textbook binary algorithm on ints
+    def jacobi(a0: Int, n0: Int) = {
+      var a = a0 % n0
+      var n = n0
+      var t = 1
+      while(a != 0) {
+        while(a % 2 == 0) {
+          a /= 2
+          if(n % 8 == 3 || n % 8 == 5) t = -t
+        }
+        val swap = a
+        a = n
+        n = swap
+        if(a % 4 == 3 && n % 4 == 3) t = -t
+        a %= n
+      }
+      if(n == 1) t else 0
+    }
+
+    for(n <- 3 until 200 by 2; a <- 0 until 3 * n) {
+      Jacobi.symbol(BigInteger.valueOf(a), BigInteger.valueOf(n)) should be (jacobi(a, n))
+    }
+  }
+
+  "GStarMod.contains" should "agree with the modPow reference on members, non-members, 0 and p" in {
+    groups.foreach { group =>
+      val values = candidates(group)
+      values.foreach { a =>
+        group.contains(a) should be (reference(group, a))
+      }
+      group.contains(values.toArray).toSeq should be (values.map(reference(group, _)))
+    }
+  }
+
+  "GStarMod.containsAll" should "accept only batches of members" in {
+    groups.foreach { group =>
+      val p = group.getModulus
+      val members = (1 to 20).map(_ => group.getRandomElement.getValue)
+      group.containsAll(members.toArray) should be (true)
+      group.containsAll(Array[BigInteger]()) should be (true)
+      Seq(BigInteger.ZERO, p, p.add(BigInteger.ONE), BigInteger.ONE.negate).foreach { bad =>
+        group.containsAll((members :+ bad).toArray) should be (false)
+        group.containsAll((bad +: members).toArray) should be (false)
+      }
+      val nonMember = Iterator.continually(new BigInteger(p.bitLength - 1, random)).find(a => a.signum > 0 && !reference(group, a)).get
+      group.containsAll((members :+ nonMember).toArray) should be (false)
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.Executors
+import akka.cluster.Cluster
+import akka.cluster.MemberStatus
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+/**
+ * Checks that the extractor leaves a thread usable when a block fails
+ *
+ * The extractor runs against a single node cluster (this jvm joins itself).
+ */
+class MPBridgeSpec extends FlatSpec with Matchers with BeforeAndAfterAll {
+  val mod = new BigInteger("340282366920938463463374607431768211507")
+  val base = new BigInteger("1234567890123456789")
+  val pow = new BigInteger("98765432109876543210")
+  val expected = base.modPow(pow, mod)
+
+  // a single thread, so that the checks run on the thread that failed
+  val executor = Executors.newSingleThreadExecutor()
+  val single = ExecutionContext.fromExecutor(executor)
+
+  override def beforeAll() = {
+    MPBridge.init(false, true)
+    val cluster = Cluster(AkkaModPowService.system)
+    cluster.join(cluster.selfAddress)
+    val deadline = 30.seconds.fromNow
+    while(!cluster.state.members.exists(_.status == MemberStatus.Up) && deadline.hasTimeLeft) Thread.sleep(100)
+  }
+
+  override def afterAll() = {
+    executor.shutdown()
+    MPBridge.init(false, false)
+    Await.ready(AkkaModPowService.system.terminate(), 30.seconds)
+  }
+
+  def onSingle[T](f: => T): T = Await.result(scala.concurrent.Future(f)(single), 30.seconds)
+
+  "exAsync" should "compute the block's modexps" in {
+    val result = onSingle(MPBridgeS.exAsync(MPBridge.modPow(base, pow, mod), "2")(single))
+    Await.result(result, 30.seconds) should be (expected)
+  }
+
+  it should "leave the thread usable when the record pass throws" in {
+    onSingle {
+      an [IllegalArgumentException] should be thrownBy {
+        MPBridgeS.exAsync({
+          MPBridge.modPow(base, pow, mod)
+          throw new IllegalArgumentException("malformed input")
+        }, "2")(single)
+      }
+      MPBridge.isRecording should be (false)
+      MPBridge.modPow(base, pow, mod) should be (expected)
+    }
+    val result = onSingle(MPBridgeS.exAsync(MPBridge.modPow(base, pow, mod), "2")(single))
+    Await.result(result, 30.seconds) should be (expected)
+  }
+
+  it should "leave the thread usable when the replay throws" in {
+    @volatile var passes = 0
+    val failed = onSingle {
+      MPBridgeS.exAsync({
+        passes += 1
+        MPBridge.modPow(base, pow, mod)
+        if(passes == 2) throw new IllegalStateException("replay failed")
+      }, "2")(single)
+    }
+    an [IllegalStateException] should be thrownBy Await.result(failed, 30.seconds)
+    onSingle {
+      MPBridge.isReplaying should be (false)
+      MPBridge.modPow(base, pow, mod) should be (expected)
+    }
+  }
+
+  it should "leave the thread usable when the replay does not consume all the answers" in {
+    @volatile var passes = 0
+    val failed = onSingle {
+      MPBridgeS.exAsync({
+        passes += 1
+        if(passes == 1) MPBridge.modPow(base, pow, mod) else BigInteger.ONE
+      }, "2")(single)
+    }
+    an [IllegalStateException] should be thrownBy Await.result(failed, 30.seconds)
+    onSingle {
+      MPBridge.isReplaying should be (false)
+      MPBridge.modPow(base, pow, mod) should be (expected)
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.Random
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that every message bound to MPServiceSerializer reads back as written
+ */
+class MPServiceSerializerSpec extends FlatSpec with Matchers {
+  val random = new Random(1)
+  val serializer = new MPServiceSerializer
+  val mod = new BigInteger(256, random).setBit(255)
+
+  def value(bits: Int) = new BigInteger(bits, random)
+  // different widths, zero and negative values
+  val values = Array(value(256), value(8), BigInteger.ZERO, value(255).negate, BigInteger.ONE.negate)
+  // more than 32 flags, so that they take several ints
+  val work = Array.tabulate(40)(i => ModPow2(values(i % values.length), value(i * 6), i % 3 == 0))
+
+  def roundTrip[T <: AnyRef](obj: T): T =
+    serializer.fromBinary(serializer.toBinary(obj), Some(obj.getClass)).asInstanceOf[T]
+
+  "MPServiceSerializer" should "round trip the work messages" in {
+    val fixedMod = roundTrip(WorkFixedMod(1, 2, work, mod))
+    (fixedMod.requestId, fixedMod.workId, fixedMod.mod) should be ((1, 2, mod))
+    fixedMod.work.toSeq should be (work.toSeq)
+
+    val debug = roundTrip(WorkFixedModDebug(3, 4, work, mod))
+    (debug.requestId, debug.workId, debug.mod) should be ((3, 4, mod))
+    debug.work.toSeq should be (work.toSeq)
+
+    val product = roundTrip(WorkProduct(5, 6, work, mod))
+    (product.requestId, product.workId, product.mod) should be ((5, 6, mod))
+    product.work.toSeq should be (work.toSeq)
+  }
+
+  it should "round trip the replies" in {
+    val reply = roundTrip(WorkReply(1, 2, values))
+    (reply.requestId, reply.workId) should be ((1, 2))
+    reply.result.toSeq should be (values.toSeq)
+
+    roundTrip(WorkReply(1, 2, Array())).result should be (empty)
+
+    val results = values.map(v => ModPowResult(v, value(64), mod, value(255)))
+    val debug = roundTrip(WorkReplyDebug(3, 4, results))
+    (debug.requestId, debug.workId) should be ((3, 4))
+    debug.result.toSeq should be (results.toSeq)
+
+    roundTrip(WorkReplyProduct(5, 6, values(3))) should be (WorkReplyProduct(5, 6, values(3)))
+  }
+
+  it should "round trip the session messages" in {
+    val session = roundTrip(WorkSession(7, mod, values, Array(0, 3)))
+    (session.requestId, session.mod) should be ((7, mod))
+    session.bases.toSeq should be (values.toSeq)
+    session.fixedBases.toSeq should be (Seq(0, 3))
+
+    val refs = Array(0, -1, 2, -1, 4)
+    val inline = Array(value(256), value(16))
+    val pows = Array.fill(refs.length)(value(256))
+    val secret = Array(true, false, false, true, false)
+    Seq(true, false).foreach { debug =>
+      val cached = roundTrip(WorkCached(8, 9, refs, inline, pows, secret, debug))
+      (cached.requestId, cached.workId, cached.debug) should be ((8, 9, debug))
+      cached.baseRefs.toSeq should be (refs.toSeq)
+      cached.inlineBases.toSeq should be (inline.toSeq)
+      cached.pows.toSeq should be (pows.toSeq)
+      cached.secret.toSeq should be (secret.toSeq)
+    }
+  }
+
+  it should "write the 20 byte header, the ints and one fixed width value per item" in {
+    val bytes = serializer.toBinary(WorkReply(1, 2, Array(BigInteger.ONE, BigInteger.valueOf(256))))
+    // widths 1 and 2, both written as 2
+    bytes.length should be (MPServiceSerializer.headerSize + 2 * 2)
+    val session = serializer.toBinary(WorkSession(1, BigInteger.ONE, Array(), Array(0, 1, 2)))
+    session.length should be (MPServiceSerializer.headerSize + 3 * 4 + 1)
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package mpservice
+
+import java.math.BigInteger
+import java.util.Random
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks the simultaneous exponentiation and the barrett reduction against plain BigInteger arithmetic
+ */
+class MultiExpSpec extends FlatSpec with Matchers {
+  val random = new Random(1)
+
+  def naive(work: Seq[ModPow2], mod: BigInteger) = work.foldLeft(BigInteger.ONE.mod(mod)) { (acc, w) =>
+    acc.multiply(w.base.modPow(w.pow, mod)).mod(mod)
+  }
+
+  def work(n: Int, mod: BigInteger, powBits: Int) = (1 to n).map { _ =>
+    ModPow2(new BigInteger(mod.bitLength - 1, random), new BigInteger(powBits, random))
+  }
+
+  "MultiExp.compute" should "equal the product of the individual modexps" in {
+    Seq(64, 512, 2048).foreach { bits =>
+      val mod = GStarModSafePrime.getFirstInstance(bits).getModulus
+      Seq(0, 1, 2, 7, 33, 100).foreach { n =>
+        val w = work(n, mod, bits)
+        MultiExp.compute(w.toArray, mod) should be (naive(w, mod))
+      }
+    }
+  }
+
+  it should "handle zero and one exponents, and exponents of different lengths" in {
+    val mod = GStarModSafePrime.getFirstInstance(256).getModulus
+    val w = work(10, mod, 256) ++ work(10, mod, 8) ++
+      Seq(ModPow2(BigInteger.valueOf(3), BigInteger.ZERO), ModPow2(BigInteger.valueOf(5), BigInteger.ONE))
+    MultiExp.compute(w.toArray, mod) should be (naive(w, mod))
+  }
+
+  it should "compute a sub range" in {
+    val mod = GStarModSafePrime.getFirstInstance(256).getModulus
+    val w = work(20, mod, 256)
+    MultiExp.compute(w.toArray, 5, 15, mod) should be (naive(w.slice(5, 15), mod))
+  }
+
+  "MultiExp.computeParallel" should "equal the sequential result for any chunk size" in {
+    val mod = GStarModSafePrime.getFirstInstance(512).getModulus
+    val w = work(101, mod, 512)
+    val expected = naive(w, mod)
+    Seq(1, 7, 50, 101, 1000).foreach { chunk =>
+      MultiExp.computeParallel(w.toArray, mod, chunk) should be (expected)
+    }
+  }
+
+  "BarrettReducer" should "reduce like BigInteger.mod for values below the squared modulus" in {
+    Seq(64, 127, 512, 2048).foreach { bits =>
+      val mod = GStarModSafePrime.getFirstInstance(bits).getModulus
+      val reducer = new BarrettReducer(mod)
+      val square = mod.multiply(mod)
+      val edges = Seq(BigInteger.ZERO, BigInteger.ONE, mod.subtract(BigInteger.ONE), mod, mod.add(BigInteger.ONE),
+        square.subtract(BigInteger.ONE))
+      val values = edges ++ (1 to 200).map(_ => new BigInteger(2 * bits, random).mod(square))
+      values.foreach { x =>
+        reducer.reduce(x) should be (x.mod(mod))
+      }
+    }
+  }
+
+  it should "multiply modulo the modulus" in {
+    val mod = GStarModSafePrime.getFirstInstance(1024).getModulus
+    val reducer = new BarrettReducer(mod)
+    (1 to 200).foreach { _ =>
+      val a = new BigInteger(1023, random)
+      val b = new BigInteger(1023, random)
+      reducer.multiply(a, b) should be (a.multiply(b).mod(mod))
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package utils
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.UniCryptException
+import ch.bfh.unicrypt.UniCryptRuntimeException
+import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks that CiphertextCodec reads and writes the same format as unicrypt
+ */
+class CiphertextCodecSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(256)
+  val space = ElGamalEncryptionScheme.getInstance(group.getDefaultGenerator).getEncryptionSpace
+  val ciphertexts = (1 to 100).map(_ => space.getRandomElement)
+  // p - 1 is not a quadratic residue modulo a safe prime
+  val nonMember = s"""["1"|"${group.getModulus.subtract(BigInteger.ONE)}"]"""
+
+  "encode" should "produce unicrypt's string representation" in {
+    ciphertexts.foreach { c =>
+      CiphertextCodec.encode(c) should be (c.convertToString)
+    }
+    CiphertextCodec.encodeAll(Tuple.getInstance(ciphertexts: _*)) should be (ciphertexts.map(_.convertToString))
+  }
+
+  "decode" should "invert encode" in {
+    ciphertexts.foreach { c =>
+      CiphertextCodec.decode(space, CiphertextCodec.encode(c)) should be (c)
+    }
+  }
+
+  it should "leave other formats to unicrypt" in {
+    val spaced = ciphertexts.head.convertToString.replace("|", " | ")
+    a [UniCryptException] should be thrownBy CiphertextCodec.decode(space, spaced)
+  }
+
+  "decodeAll" should "invert encodeAll, keeping the order" in {
+    val encoded = CiphertextCodec.encodeAll(Tuple.getInstance(ciphertexts: _*))
+    CiphertextCodec.decodeAll(space, encoded) should be (ciphertexts)
+    CiphertextCodec.decodeAll(space, Seq()) should be (Seq())
+  }
+
+  it should "reject ciphertexts whose components are not in the group" in {
+    val encoded = ciphertexts.map(CiphertextCodec.encode)
+    an [UniCryptRuntimeException] should be thrownBy CiphertextCodec.decodeAll(space, encoded :+ nonMember)
+    an [UniCryptRuntimeException] should be thrownBy CiphertextCodec.decodeAll(space, Seq(s"""["0"|"1"]"""))
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * This file is part of agora-mixnet.
+ * Copyright (C) 2015-2016  Agora Voting SL <agora@agoravoting.com>
+
+ * agora-mixnet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+
+ * agora-mixnet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+
+ * You should have received a copy of the GNU Affero General Public License
+ * along with agora-mixnet.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package utils
+
+import java.math.BigInteger
+import ch.bfh.unicrypt.UniCryptRuntimeException
+import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import org.scalatest.{FlatSpec, Matchers}
+
+/**
+ * Checks CiphertextStore against the List[String] of votes it replaces
+ */
+class CiphertextStoreSpec extends FlatSpec with Matchers {
+  val group = GStarModSafePrime.getFirstInstance(64)
+  val space = ElGamalEncryptionScheme.getInstance(group.getDefaultGenerator).getEncryptionSpace
+
+  def votes(n: Int) = (1 to n).map(_ => CiphertextCodec.encode(space.getRandomElement))
+
+  def values(vote: String) = CiphertextCodec.parse(vote).get
+
+  // the store must read back exactly the serialized votes, in the same order
+  def check(store: CiphertextStore, expected: Seq[String]) = {
+    store.size should be (expected.size)
+    expected.indices.foreach { i =>
+      store(i) should be (values(expected(i)))
+    }
+    store.elements(space).map(CiphertextCodec.encode) should be (expected)
+  }
+
+  "CiphertextStore" should "read back the votes it was built from" in {
+    val input = votes(100)
+    val store = CiphertextStore(input, group)
+    check(store, input)
+    CiphertextCodec.encode(store.element(42, space)) should be (input(42))
+    an [IndexOutOfBoundsException] should be thrownBy store(100)
+    an [IndexOutOfBoundsException] should be thrownBy store(-1)
+  }
+
+  it should "be empty for no votes" in {
+    CiphertextStore(Seq(), group).isEmpty should be (true)
+    check(CiphertextStore.empty ::: CiphertextStore.empty, Seq())
+  }
+
+  it should "reject votes that are not in the group" in {
+    val nonMember = s"""["1"|"${group.getModulus.subtract(BigInteger.ONE)}"]"""
+    an [UniCryptRuntimeException] should be thrownBy CiphertextStore(votes(10) :+ nonMember, group)
+    an [UniCryptRuntimeException] should be thrownBy CiphertextStore(Seq("not a vote"), group)
+  }
+
+  it should "prepend like List" in {
+    val first = votes(10)
+    val second = votes(20)
+    val store = CiphertextStore(first, group) ::: CiphertextStore(second, group)
+    check(store, first ++ second)
+    check(CiphertextStore.empty ::: store, first ++ second)
+    check(store ::: CiphertextStore.empty, first ++ second)
+  }
+
+  it should "keep every intermediate store when votes are added one at a time" in {
+    val input = votes(300)
+    val stores = input.scanLeft((CiphertextStore.empty, List[String]())) { case ((store, list), vote) =>
+      (CiphertextStore(Seq(vote), group) ::: store, vote :: list)
+    }
+    stores.foreach { case (store, list) => check(store, list) }
+  }
+
+  it should "not let stores that share a segment overwrite each other" in {
+    val base = CiphertextStore(votes(5), group)
+    val grown = CiphertextStore(votes(1), group) ::: (CiphertextStore(votes(1), group) ::: base)
+    val expected = (0 until grown.size).map(i => grown(i))
+
+    // both branches prepend in front of the same segment, only one of them can use its free space
+    val a = votes(3)
+    val b = votes(3)
+    val left = CiphertextStore(a, group) ::: grown
+    val right = CiphertextStore(b, group) ::: grown
+    (0 until 3).foreach { i =>
+      left(i) should be (values(a(i)))
+      right(i) should be (values(b(i)))
+    }
+    (0 until grown.size).foreach { i =>
+      grown(i) should be (expected(i))
+      left(i + 3) should be (expected(i))
+      right(i + 3) should be (expected(i))
+    }
+  }
+
+  it should "start a new segment past segmentSize" in {
+    val n = CiphertextStore.segmentSize + 100
+    val input = votes(n)
+    var store = CiphertextStore.empty
+    input.foreach { vote =>
+      store = CiphertextStore(Seq(vote), group) ::: store
+    }
+    check(store, input.reverse)
+
+    val built = CiphertextStore(input, group)
+    check(built, input)
+    check(built ::: built, input ++ input)
+  }
+}